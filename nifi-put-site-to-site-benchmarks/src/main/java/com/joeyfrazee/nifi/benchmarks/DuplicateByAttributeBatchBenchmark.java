@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.joeyfrazee.nifi.processors.DuplicateByAttribute;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures DuplicateByAttribute on a stream of small FlowFiles, the case
+ * where per-trigger overhead dominates. Each operation drains a queue of
+ * FLOWFILES_PER_OPERATION FlowFiles with three-value lists, at different
+ * batch sizes, with and without expression language in the properties.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DuplicateByAttributeBatchBenchmark {
+
+    private static final int FLOWFILES_PER_OPERATION = 1000;
+
+    private static final int LIST_SIZE = 3;
+
+    @Param({"1", "10", "100", "1000"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean expressionLanguage;
+
+    private final byte[] content = "some content".getBytes(StandardCharsets.UTF_8);
+
+    private final Map<String, String> attributes = new HashMap<String, String>();
+
+    private TestRunner runner;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        runner = TestRunners.newTestRunner(DuplicateByAttribute.class);
+        if (expressionLanguage) {
+            runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "${list.attribute}");
+            runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "${output.attribute}");
+            attributes.put("list.attribute", "list_of_things");
+            attributes.put("output.attribute", "thing");
+        }
+        else {
+            runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "list_of_things");
+            runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "thing");
+        }
+        runner.setProperty(DuplicateByAttribute.BATCH_SIZE, String.valueOf(batchSize));
+        attributes.put("list_of_things", "lions,tigers,bears");
+
+        runner.run(0, false, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runner.run(0, true, false);
+    }
+
+    @Benchmark
+    public void duplicate(final ThroughputCounters counters) {
+        for (int i = 0; i < FLOWFILES_PER_OPERATION; i++) {
+            runner.enqueue(content, attributes);
+        }
+        runner.run((FLOWFILES_PER_OPERATION + batchSize - 1) / batchSize, false, false);
+        runner.clearTransferState();
+
+        counters.flowFiles += FLOWFILES_PER_OPERATION * LIST_SIZE;
+        counters.bytes += (long) FLOWFILES_PER_OPERATION * LIST_SIZE * content.length;
+    }
+}
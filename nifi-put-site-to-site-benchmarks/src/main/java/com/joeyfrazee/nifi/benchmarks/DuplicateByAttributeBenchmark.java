@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.joeyfrazee.nifi.processors.DuplicateByAttribute;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures DuplicateByAttribute fanning one FlowFile out over lists of
+ * increasing size. Each operation is one input FlowFile.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DuplicateByAttributeBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000", "100000"})
+    public int listSize;
+
+    private final byte[] content = "some content".getBytes(StandardCharsets.UTF_8);
+
+    private final Map<String, String> attributes = new HashMap<String, String>();
+
+    private TestRunner runner;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        runner = TestRunners.newTestRunner(DuplicateByAttribute.class);
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "list_of_things");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "thing");
+
+        final StringBuilder list = new StringBuilder();
+        for (int i = 0; i < listSize; i++) {
+            if (i > 0) {
+                list.append(',');
+            }
+            list.append("thing-").append(i);
+        }
+        attributes.put("list_of_things", list.toString());
+
+        runner.run(0, false, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runner.run(0, true, false);
+    }
+
+    @Benchmark
+    public void duplicate(final ThroughputCounters counters) {
+        runner.enqueue(content, attributes);
+        runner.run(1, false, false);
+        runner.clearTransferState();
+
+        counters.flowFiles += listSize;
+        counters.bytes += (long) listSize * content.length;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.joeyfrazee.nifi.processors.PutSiteToSite;
+import com.joeyfrazee.nifi.processors.InMemoryReceiver;
+import com.joeyfrazee.nifi.processors.InMemorySiteToSiteClient;
+
+import org.apache.nifi.remote.client.SiteToSiteClient;
+import org.apache.nifi.remote.client.SiteToSiteClientConfig;
+import org.apache.nifi.ssl.StandardSSLContextService;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures PutSiteToSite across payload sizes, batch sizes, compression and
+ * TLS. Each operation is one batch of FlowFiles.
+ *
+ * By default FlowFiles are handed to an in-memory receiver in place of the
+ * site-to-site client, which measures only the processor's own overhead:
+ * nothing is compressed or encrypted, and with tls=true each new client only
+ * has to show, once, that its SSLContext completes a TLS handshake. To
+ * measure compression, TLS and the wire, point the benchmark at a running
+ * NiFi instance with
+ * -Ds2s.benchmark.url=... and -Ds2s.benchmark.port=... (and, for tls=true,
+ * -Ds2s.benchmark.keystore, -Ds2s.benchmark.keystorePassword,
+ * -Ds2s.benchmark.truststore and -Ds2s.benchmark.truststorePassword).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PutSiteToSiteBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"1", "100"})
+    public int batchCount;
+
+    @Param({"false", "true"})
+    public boolean compression;
+
+    @Param({"false", "true"})
+    public boolean tls;
+
+    private final InMemoryReceiver receiver = new InMemoryReceiver();
+
+    private final Map<String, String> attributes = new HashMap<String, String>();
+
+    private byte[] payload;
+
+    private TestRunner runner;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final String remoteUrl = System.getProperty("s2s.benchmark.url");
+
+        runner = TestRunners.newTestRunner(remoteUrl == null ? new StandInPutSiteToSite(receiver) : new PutSiteToSite());
+        runner.setProperty(PutSiteToSite.REMOTE_URL, remoteUrl == null ? "http://localhost:8080/nifi" : remoteUrl);
+        runner.setProperty(PutSiteToSite.REMOTE_INPUT_PORT, System.getProperty("s2s.benchmark.port", "input"));
+        runner.setProperty(PutSiteToSite.USE_COMPRESSION, String.valueOf(compression));
+        runner.setProperty(PutSiteToSite.BATCH_COUNT, String.valueOf(batchCount));
+        runner.setProperty(PutSiteToSite.BATCH_SIZE, (long) payloadSize * batchCount + " B");
+
+        if (tls) {
+            if (remoteUrl == null) {
+                receiver.setRequireSslContext(true);
+                System.setProperty("s2s.benchmark.keystore", InMemoryReceiver.copyStore(InMemoryReceiver.KEYSTORE).getAbsolutePath());
+                System.setProperty("s2s.benchmark.keystorePassword", InMemoryReceiver.STORE_PASSWORD);
+                System.setProperty("s2s.benchmark.truststore", InMemoryReceiver.copyStore(InMemoryReceiver.TRUSTSTORE).getAbsolutePath());
+                System.setProperty("s2s.benchmark.truststorePassword", InMemoryReceiver.STORE_PASSWORD);
+            }
+            addSslContextService(runner);
+        }
+
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        attributes.put("benchmark", "true");
+
+        runner.run(0, false, true);
+    }
+
+    private static void addSslContextService(final TestRunner runner) throws Exception {
+        final String keystore = System.getProperty("s2s.benchmark.keystore");
+        final String truststore = System.getProperty("s2s.benchmark.truststore");
+        if (keystore == null || truststore == null) {
+            throw new IllegalStateException("tls=true requires -Ds2s.benchmark.keystore and -Ds2s.benchmark.truststore");
+        }
+
+        final StandardSSLContextService sslContextService = new StandardSSLContextService();
+        runner.addControllerService("ssl-context", sslContextService);
+        runner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE, keystore);
+        runner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE_PASSWORD, System.getProperty("s2s.benchmark.keystorePassword", ""));
+        runner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE_TYPE, System.getProperty("s2s.benchmark.keystoreType", "JKS"));
+        runner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE, truststore);
+        runner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE_PASSWORD, System.getProperty("s2s.benchmark.truststorePassword", ""));
+        runner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE_TYPE, System.getProperty("s2s.benchmark.truststoreType", "JKS"));
+        runner.enableControllerService(sslContextService);
+        runner.setProperty(PutSiteToSite.SSL_CONTEXT_SERVICE, "ssl-context");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        runner.run(0, true, false);
+        receiver.close();
+    }
+
+    @Benchmark
+    public void send(final ThroughputCounters counters) {
+        for (int i = 0; i < batchCount; i++) {
+            runner.enqueue(payload, attributes);
+        }
+        runner.run(1, false, false);
+        runner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, batchCount);
+        runner.clearTransferState();
+        receiver.getReceived().clear();
+
+        counters.flowFiles += batchCount;
+        counters.bytes += (long) payloadSize * batchCount;
+    }
+
+    public static class StandInPutSiteToSite extends PutSiteToSite {
+
+        private final InMemoryReceiver receiver;
+
+        public StandInPutSiteToSite(final InMemoryReceiver receiver) {
+            this.receiver = receiver;
+            receiver.setRetainContent(false);
+        }
+
+        @Override
+        protected SiteToSiteClient createClient(final SiteToSiteClientConfig config) {
+            return new InMemorySiteToSiteClient(config, receiver);
+        }
+    }
+}
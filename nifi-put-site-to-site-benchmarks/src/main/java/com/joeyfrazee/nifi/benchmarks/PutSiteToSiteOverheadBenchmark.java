@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.joeyfrazee.nifi.processors.PutSiteToSite;
+import com.joeyfrazee.nifi.processors.InMemoryReceiver;
+
+import org.apache.nifi.ssl.StandardSSLContextService;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the per-FlowFile cost of PutSiteToSite outside of the transfer
+ * itself: resolving the destination, with and without expression language
+ * in Remote URL and Remote Input Port, and with and without an SSL Context
+ * Service. FlowFiles are tiny and handed to an in-memory receiver in place
+ * of the site-to-site client, so what is left is the processor's own
+ * overhead. Each
+ * operation is one batch of BATCH_COUNT FlowFiles.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PutSiteToSiteOverheadBenchmark {
+
+    private static final int BATCH_COUNT = 100;
+
+    @Param({"false", "true"})
+    public boolean expressionLanguage;
+
+    @Param({"false", "true"})
+    public boolean sslContextService;
+
+    private final InMemoryReceiver receiver = new InMemoryReceiver();
+
+    private final Map<String, String> attributes = new HashMap<String, String>();
+
+    private final byte[] payload = new byte[16];
+
+    private TestRunner runner;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        runner = TestRunners.newTestRunner(new PutSiteToSiteBenchmark.StandInPutSiteToSite(receiver));
+        if (expressionLanguage) {
+            runner.setProperty(PutSiteToSite.REMOTE_URL, "${remote.url}");
+            runner.setProperty(PutSiteToSite.REMOTE_INPUT_PORT, "${remote.port}");
+            attributes.put("remote.url", "http://localhost:8080/nifi");
+            attributes.put("remote.port", "input");
+        }
+        else {
+            runner.setProperty(PutSiteToSite.REMOTE_URL, "http://localhost:8080/nifi");
+            runner.setProperty(PutSiteToSite.REMOTE_INPUT_PORT, "input");
+        }
+        runner.setProperty(PutSiteToSite.BATCH_COUNT, String.valueOf(BATCH_COUNT));
+
+        if (sslContextService) {
+            final StandardSSLContextService service = new StandardSSLContextService();
+            runner.addControllerService("ssl-context", service);
+            runner.setProperty(service, StandardSSLContextService.KEYSTORE, InMemoryReceiver.copyStore(InMemoryReceiver.KEYSTORE).getAbsolutePath());
+            runner.setProperty(service, StandardSSLContextService.KEYSTORE_PASSWORD, InMemoryReceiver.STORE_PASSWORD);
+            runner.setProperty(service, StandardSSLContextService.KEYSTORE_TYPE, "JKS");
+            runner.setProperty(service, StandardSSLContextService.TRUSTSTORE, InMemoryReceiver.copyStore(InMemoryReceiver.TRUSTSTORE).getAbsolutePath());
+            runner.setProperty(service, StandardSSLContextService.TRUSTSTORE_PASSWORD, InMemoryReceiver.STORE_PASSWORD);
+            runner.setProperty(service, StandardSSLContextService.TRUSTSTORE_TYPE, "JKS");
+            runner.enableControllerService(service);
+            runner.setProperty(PutSiteToSite.SSL_CONTEXT_SERVICE, "ssl-context");
+        }
+
+        runner.run(0, false, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        runner.run(0, true, false);
+        receiver.close();
+    }
+
+    @Benchmark
+    public void send(final ThroughputCounters counters) {
+        for (int i = 0; i < BATCH_COUNT; i++) {
+            runner.enqueue(payload, attributes);
+        }
+        runner.run(1, false, false);
+        runner.clearTransferState();
+        receiver.getReceived().clear();
+
+        counters.flowFiles += BATCH_COUNT;
+        counters.bytes += (long) payload.length * BATCH_COUNT;
+    }
+}
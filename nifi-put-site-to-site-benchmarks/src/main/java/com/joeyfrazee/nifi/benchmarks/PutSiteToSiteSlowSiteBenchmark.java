@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.joeyfrazee.nifi.processors.PutSiteToSite;
+import com.joeyfrazee.nifi.processors.InMemoryReceiver;
+import com.joeyfrazee.nifi.processors.InMemorySiteToSiteClient;
+
+import org.apache.nifi.remote.client.SiteToSiteClient;
+import org.apache.nifi.remote.client.SiteToSiteClientConfig;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how much one slow remote site holds up the others. Several
+ * concurrent tasks send to a fast in-memory receiver and to one that adds a
+ * delay to every round trip, either with every FlowFile going to one site
+ * or with every other FlowFile fanned out to both. The queue is kept topped
+ * up so that there is always work for the fast site. Each operation is one
+ * round of triggers; FlowFiles per second are reported for each site.
+ *
+ * With 'Max Concurrent Tasks per Destination' at 0 the slow site can take
+ * up every task, and the fast site's throughput drops with it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PutSiteToSiteSlowSiteBenchmark {
+
+    private static final String FAST_URL = "http://fast:8080/nifi";
+
+    private static final String SLOW_URL = "http://slow:8080/nifi";
+
+    private static final int THREADS = 4;
+
+    private static final int QUEUE_DEPTH = 100;
+
+    @Param({"0", "1"})
+    public int maxTasksPerDestination;
+
+    @Param({"false", "true"})
+    public boolean fanOut;
+
+    @Param({"20"})
+    public long slowLatencyMillis;
+
+    private final InMemoryReceiver fast = new InMemoryReceiver();
+
+    private final InMemoryReceiver slow = new InMemoryReceiver();
+
+    private final byte[] payload = new byte[1024];
+
+    private TestRunner runner;
+
+    private int enqueued;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class SiteCounters {
+
+        public long fastFlowFiles;
+
+        public long slowFlowFiles;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            fastFlowFiles = 0;
+            slowFlowFiles = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        slow.setLatencyMillis(slowLatencyMillis);
+
+        final Map<String, InMemoryReceiver> receivers = new HashMap<String, InMemoryReceiver>();
+        receivers.put(FAST_URL, fast);
+        receivers.put(SLOW_URL, slow);
+
+        runner = TestRunners.newTestRunner(new StandInPutSiteToSite(receivers));
+        runner.setProperty(PutSiteToSite.REMOTE_URL, "${remote.url}");
+        runner.setProperty(PutSiteToSite.REMOTE_INPUT_PORT, "input");
+        runner.setProperty(PutSiteToSite.DESTINATIONS_ATTRIBUTE, "destinations");
+        runner.setProperty(PutSiteToSite.MAX_TASKS_PER_DESTINATION, String.valueOf(maxTasksPerDestination));
+        runner.setThreadCount(THREADS);
+
+        new Random(42).nextBytes(payload);
+        runner.run(0, false, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        runner.run(0, true, false);
+        fast.close();
+        slow.close();
+    }
+
+    @Benchmark
+    public void send(final SiteCounters counters) {
+        while (runner.getQueueSize().getObjectCount() < QUEUE_DEPTH) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            if (enqueued++ % 2 == 0) {
+                attributes.put("remote.url", FAST_URL);
+            }
+            else if (fanOut) {
+                attributes.put("destinations", FAST_URL + "," + SLOW_URL);
+            }
+            else {
+                attributes.put("remote.url", SLOW_URL);
+            }
+            runner.enqueue(payload, attributes);
+        }
+        runner.run(THREADS, false, false);
+        runner.clearTransferState();
+
+        counters.fastFlowFiles += drain(fast);
+        counters.slowFlowFiles += drain(slow);
+    }
+
+    private static int drain(final InMemoryReceiver receiver) {
+        // Every send has finished by the time run returns
+        final int count = receiver.getReceived().size();
+        receiver.getReceived().clear();
+        return count;
+    }
+
+    public static class StandInPutSiteToSite extends PutSiteToSite {
+
+        private final Map<String, InMemoryReceiver> receivers;
+
+        public StandInPutSiteToSite(final Map<String, InMemoryReceiver> receivers) {
+            this.receivers = receivers;
+            for (final InMemoryReceiver receiver : receivers.values()) {
+                receiver.setRetainContent(false);
+            }
+        }
+
+        @Override
+        protected SiteToSiteClient createClient(final SiteToSiteClientConfig config) {
+            return new InMemorySiteToSiteClient(config, receivers.get(config.getUrl()));
+        }
+    }
+}
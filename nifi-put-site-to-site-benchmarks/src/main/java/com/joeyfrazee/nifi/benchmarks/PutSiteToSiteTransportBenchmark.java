@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.joeyfrazee.nifi.processors.PutSiteToSite;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the RAW and HTTP site-to-site transports across payload and batch
+ * sizes, reporting both throughput and the latency of each batch. Each
+ * operation is one batch of FlowFiles.
+ *
+ * This is a manual benchmark: the in-process receiver replaces the client
+ * above the wire, so it cannot tell the transports apart, and the benchmark
+ * only runs against a live NiFi instance given with
+ * -Ds2s.benchmark.url=... and -Ds2s.benchmark.port=...; RAW also needs
+ * nifi.remote.input.socket.port to be set on that instance.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PutSiteToSiteTransportBenchmark {
+
+    @Param({"RAW", "HTTP"})
+    public String transport;
+
+    @Param({"1024", "1048576"})
+    public int payloadSize;
+
+    @Param({"1", "100"})
+    public int batchCount;
+
+    private final Map<String, String> attributes = new HashMap<String, String>();
+
+    private byte[] payload;
+
+    private TestRunner runner;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final String remoteUrl = System.getProperty("s2s.benchmark.url");
+        final String remotePort = System.getProperty("s2s.benchmark.port");
+        if (remoteUrl == null || remotePort == null) {
+            throw new IllegalStateException("PutSiteToSiteTransportBenchmark needs a live NiFi instance; "
+                + "set -Ds2s.benchmark.url and -Ds2s.benchmark.port");
+        }
+
+        runner = TestRunners.newTestRunner(new PutSiteToSite());
+        runner.setProperty(PutSiteToSite.REMOTE_URL, remoteUrl);
+        runner.setProperty(PutSiteToSite.REMOTE_INPUT_PORT, remotePort);
+        runner.setProperty(PutSiteToSite.TRANSPORT_PROTOCOL, transport);
+        runner.setProperty(PutSiteToSite.BATCH_COUNT, String.valueOf(batchCount));
+        runner.setProperty(PutSiteToSite.BATCH_SIZE, (long) payloadSize * batchCount + " B");
+
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        attributes.put("benchmark", "true");
+
+        runner.run(0, false, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        runner.run(0, true, false);
+    }
+
+    @Benchmark
+    public void send(final ThroughputCounters counters) {
+        for (int i = 0; i < batchCount; i++) {
+            runner.enqueue(payload, attributes);
+        }
+        runner.run(1, false, false);
+        runner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, batchCount);
+        runner.clearTransferState();
+
+        counters.flowFiles += batchCount;
+        counters.bytes += (long) payloadSize * batchCount;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.benchmarks;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.joeyfrazee.nifi.processors.PutSiteToSite;
+import com.joeyfrazee.nifi.processors.InMemoryReceiver;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how long PutSiteToSite takes after a restart to deliver one
+ * FlowFile to each of a set of destinations it has sent to before, with and
+ * without a 'Peer State Directory'. Each operation is one start, one batch
+ * and one stop of a new processor instance.
+ *
+ * The in-memory receiver charges every new client that has no persisted
+ * peers a peer discovery delay, and every round trip a small latency. With
+ * peer state, clients find their peers on disk and the recently used
+ * destinations are pre-warmed in the background as the processor starts.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class PutSiteToSiteWarmStartBenchmark {
+
+    private static final long PEER_DISCOVERY_MILLIS = 20;
+
+    private static final long LATENCY_MILLIS = 1;
+
+    @Param({"10", "100"})
+    public int destinations;
+
+    @Param({"false", "true"})
+    public boolean peerState;
+
+    private final InMemoryReceiver receiver = new InMemoryReceiver();
+
+    private final byte[] payload = new byte[1024];
+
+    private File stateDirectory;
+
+    private TestRunner runner;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        receiver.setPeerDiscoveryMillis(PEER_DISCOVERY_MILLIS);
+        receiver.setLatencyMillis(LATENCY_MILLIS);
+        stateDirectory = Files.createTempDirectory("peer-state").toFile();
+
+        // The run before the restart, which leaves the peers and the
+        // recently used destinations behind
+        if (peerState) {
+            final TestRunner first = newRunner();
+            first.run(1, true, true);
+            first.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, destinations);
+        }
+    }
+
+    private TestRunner newRunner() {
+        final TestRunner runner = TestRunners.newTestRunner(new PutSiteToSiteBenchmark.StandInPutSiteToSite(receiver));
+        runner.setProperty(PutSiteToSite.REMOTE_URL, "${remote.url}");
+        runner.setProperty(PutSiteToSite.REMOTE_INPUT_PORT, "input");
+        runner.setProperty(PutSiteToSite.BATCH_COUNT, String.valueOf(destinations));
+        runner.setProperty(PutSiteToSite.MAX_PREWARMED_CLIENTS, String.valueOf(destinations));
+        runner.setProperty(PutSiteToSite.MAX_CACHED_CLIENTS, String.valueOf(destinations));
+        if (peerState) {
+            runner.setProperty(PutSiteToSite.PEER_STATE_DIRECTORY, stateDirectory.getAbsolutePath());
+        }
+        for (int i = 0; i < destinations; i++) {
+            runner.enqueue(payload, Collections.singletonMap("remote.url", "http://localhost:" + (10000 + i) + "/nifi"));
+        }
+        return runner;
+    }
+
+    @Setup(Level.Invocation)
+    public void restart() {
+        runner = newRunner();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        receiver.close();
+        for (final File file : stateDirectory.listFiles()) {
+            file.delete();
+        }
+        stateDirectory.delete();
+    }
+
+    @Benchmark
+    public void startAndSend(final ThroughputCounters counters) {
+        runner.run(1, true, true);
+        runner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, destinations);
+        receiver.getReceived().clear();
+
+        counters.flowFiles += destinations;
+        counters.bytes += (long) payload.length * destinations;
+    }
+}
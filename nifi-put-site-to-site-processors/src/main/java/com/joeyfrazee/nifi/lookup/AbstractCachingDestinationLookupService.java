@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.lookup;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+/**
+ * Base class for lookup services whose source is too slow to query for every
+ * FlowFile. Results, including unknown keys, are kept in a bounded,
+ * least-recently-used cache until they expire. An entry that is used shortly
+ * before it expires is reloaded in the background, so that keys in steady
+ * use are never looked up on the caller's thread.
+ */
+public abstract class AbstractCachingDestinationLookupService extends AbstractControllerService implements DestinationLookupService {
+
+    public static final PropertyDescriptor CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("Cache Size")
+            .description("The maximum number of routing keys to cache")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CACHE_EXPIRATION = new PropertyDescriptor
+            .Builder().name("Cache Expiration")
+            .description("How long the destinations for a routing key are cached before they are looked up again")
+            .required(true)
+            .defaultValue("5 mins")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor REFRESH_AHEAD_PERIOD = new PropertyDescriptor
+            .Builder().name("Refresh Ahead Period")
+            .description(
+                "If a cached routing key is used within this period before " +
+                "it expires, it is looked up again in the background. A " +
+                "period of 0 secs turns off refresh-ahead."
+            )
+            .required(true)
+            .defaultValue("1 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    private static final class Entry {
+
+        private final List<String> destinations;
+
+        private final long loaded;
+
+        private boolean refreshing;
+
+        private Entry(final List<String> destinations, final long loaded) {
+            this.destinations = destinations;
+            this.loaded = loaded;
+        }
+    }
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private volatile Map<String, Entry> entries;
+
+    private volatile long expirationNanos;
+
+    private volatile long refreshAheadNanos;
+
+    private volatile ExecutorService refresher;
+
+    /**
+     * Looks up the destinations for a key in the source, returning null if
+     * the key is unknown. Called without holding any lock.
+     */
+    protected abstract List<String> load(String key) throws IOException;
+
+    /**
+     * Called when the service is enabled, after the cache is set up, so that
+     * subclasses can read their own properties.
+     */
+    protected void configure(final ConfigurationContext context) {
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) {
+        final int cacheSize = context.getProperty(CACHE_SIZE).asInteger();
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        expirationNanos = context.getProperty(CACHE_EXPIRATION).asTimePeriod(TimeUnit.NANOSECONDS);
+        refreshAheadNanos = Math.min(context.getProperty(REFRESH_AHEAD_PERIOD).asTimePeriod(TimeUnit.NANOSECONDS), expirationNanos);
+
+        final String threadName = getClass().getSimpleName() + "[" + getIdentifier() + "] Refresh";
+        refresher = Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, threadName);
+            t.setDaemon(true);
+            return t;
+        });
+
+        configure(context);
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+        entries = null;
+    }
+
+    @Override
+    public LookupResult lookup(final String key) throws IOException {
+        final Map<String, Entry> entries = this.entries;
+        final long now = System.nanoTime();
+        Entry entry;
+        boolean refresh = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && now - entry.loaded >= expirationNanos) {
+                entry = null;
+            }
+            if (entry != null && refreshAheadNanos > 0 && !entry.refreshing && now - entry.loaded >= expirationNanos - refreshAheadNanos) {
+                entry.refreshing = true;
+                refresh = true;
+            }
+        }
+
+        if (entry != null) {
+            hits.incrementAndGet();
+            if (refresh) {
+                refreshInBackground(entries, key, entry);
+            }
+            return new LookupResult(entry.destinations, true);
+        }
+
+        misses.incrementAndGet();
+        final List<String> destinations = store(entries, key, load(key));
+        return new LookupResult(destinations, false);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    private void refreshInBackground(final Map<String, Entry> entries, final String key, final Entry entry) {
+        final ExecutorService refresher = this.refresher;
+        if (refresher == null) {
+            return;
+        }
+        refresher.execute(() -> {
+            try {
+                store(entries, key, load(key));
+                refreshes.incrementAndGet();
+            }
+            catch (Exception e) {
+                getLogger().warn("Failed to refresh destinations for {}; keeping the cached ones until they expire", new Object[]{key}, e);
+                synchronized (entries) {
+                    entry.refreshing = false;
+                }
+            }
+        });
+    }
+
+    private static List<String> store(final Map<String, Entry> entries, final String key, final List<String> loaded) {
+        final List<String> destinations = (loaded == null) ? null : Collections.unmodifiableList(new ArrayList<String>(loaded));
+        synchronized (entries) {
+            entries.put(key, new Entry(destinations, System.nanoTime()));
+        }
+        return destinations;
+    }
+}
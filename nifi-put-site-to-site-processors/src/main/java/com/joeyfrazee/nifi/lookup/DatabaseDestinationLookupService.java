@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.lookup;
+
+import java.io.*;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({"destination", "lookup", "routing", "sql", "database", "cache"})
+@CapabilityDescription("Resolves routing keys to destinations with a SQL " +
+    "query and caches the results, so that a distribution list is not " +
+    "fetched from the database for every FlowFile.")
+public class DatabaseDestinationLookupService extends AbstractCachingDestinationLookupService {
+
+    public static final PropertyDescriptor DBCP_SERVICE = new PropertyDescriptor
+            .Builder().name("Database Connection Pooling Service")
+            .description("The controller service used to obtain connections to the database")
+            .required(true)
+            .identifiesControllerService(DBCPService.class)
+            .build();
+
+    public static final PropertyDescriptor LOOKUP_QUERY = new PropertyDescriptor
+            .Builder().name("Lookup Query")
+            .description(
+                "A query with a single '?' parameter, which is set to the " +
+                "routing key. The first column of each row is a destination; " +
+                "a query that returns no rows means the key is unknown."
+            )
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    private static final List<PropertyDescriptor> DESCRIPTORS = Collections.unmodifiableList(Arrays.asList(
+        DBCP_SERVICE, LOOKUP_QUERY, CACHE_SIZE, CACHE_EXPIRATION, REFRESH_AHEAD_PERIOD
+    ));
+
+    private volatile DBCPService dbcpService;
+
+    private volatile String query;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return DESCRIPTORS;
+    }
+
+    @Override
+    protected void configure(final ConfigurationContext context) {
+        dbcpService = context.getProperty(DBCP_SERVICE).asControllerService(DBCPService.class);
+        query = context.getProperty(LOOKUP_QUERY).getValue();
+    }
+
+    @Override
+    protected List<String> load(final String key) throws IOException {
+        try (final Connection connection = dbcpService.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setString(1, key);
+            final List<String> destinations = new ArrayList<String>();
+            try (final ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    destinations.add(results.getString(1));
+                }
+            }
+            return destinations.isEmpty() ? null : destinations;
+        }
+        catch (SQLException e) {
+            throw new IOException("Failed to look up destinations for " + key, e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the health of each destination. After a number of consecutive
+ * failures a destination's circuit opens and no transfers are attempted
+ * until the cool-down period has passed. Then a single trial transfer is
+ * let through (half-open); its success closes the circuit and its failure
+ * opens it again.
+ *
+ * Only destinations that have failed recently are tracked, so healthy
+ * destinations take no memory.
+ */
+final class CircuitBreakers {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * How a recorded outcome changed the circuit, so that callers can log it
+     * and keep the number of open circuits up to date.
+     */
+    enum Transition { NONE, OPENED, CLOSED }
+
+    private static final class Circuit {
+
+        private State state = State.CLOSED;
+
+        private int failures;
+
+        private long openedAt;
+    }
+
+    private final int failureThreshold;
+
+    private final long coolDownNanos;
+
+    private final Map<Destination, Circuit> circuits = new HashMap<Destination, Circuit>();
+
+    /**
+     * @param failureThreshold consecutive failures before a circuit opens, or
+     *        0 to never open circuits
+     */
+    CircuitBreakers(final int failureThreshold, final long coolDown, final TimeUnit unit) {
+        this.failureThreshold = failureThreshold;
+        this.coolDownNanos = unit.toNanos(coolDown);
+    }
+
+    /**
+     * Returns whether a transfer to the destination may be attempted. Once
+     * the cool-down of an open circuit has passed, this returns true for
+     * exactly one caller, whose outcome must then be recorded.
+     */
+    synchronized boolean allowRequest(final Destination destination) {
+        final Circuit circuit = circuits.get(destination);
+        if (circuit == null || circuit.state == State.CLOSED) {
+            return true;
+        }
+        if (circuit.state == State.OPEN && System.nanoTime() - circuit.openedAt >= coolDownNanos) {
+            circuit.state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized Transition recordSuccess(final Destination destination) {
+        final Circuit circuit = circuits.remove(destination);
+        return (circuit != null && circuit.state != State.CLOSED) ? Transition.CLOSED : Transition.NONE;
+    }
+
+    synchronized Transition recordFailure(final Destination destination) {
+        if (failureThreshold <= 0) {
+            return Transition.NONE;
+        }
+
+        Circuit circuit = circuits.get(destination);
+        if (circuit == null) {
+            circuit = new Circuit();
+            circuits.put(destination, circuit);
+        }
+
+        circuit.failures++;
+        if (circuit.state == State.HALF_OPEN) {
+            circuit.state = State.OPEN;
+            circuit.openedAt = System.nanoTime();
+        }
+        else if (circuit.state == State.CLOSED && circuit.failures >= failureThreshold) {
+            circuit.state = State.OPEN;
+            circuit.openedAt = System.nanoTime();
+            return Transition.OPENED;
+        }
+        return Transition.NONE;
+    }
+
+    synchronized State getState(final Destination destination) {
+        final Circuit circuit = circuits.get(destination);
+        return (circuit == null) ? State.CLOSED : circuit.state;
+    }
+
+    synchronized int getOpenCount() {
+        int open = 0;
+        for (final Circuit circuit : circuits.values()) {
+            if (circuit.state != State.CLOSED) {
+                open++;
+            }
+        }
+        return open;
+    }
+}
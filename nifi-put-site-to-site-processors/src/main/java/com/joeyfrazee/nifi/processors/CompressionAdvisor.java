@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * Decides per transfer whether compressing is worth it. Compression pays off
+ * when the time saved on the wire is more than the time spent deflating,
+ * that is when a destination's link is slower than (1 - ratio) times the
+ * deflate rate, where ratio is the compressed size over the original size.
+ *
+ * The ratio comes from deflating a sample of each payload, the deflate rate
+ * from timing those samples, and each destination's link rate from timing
+ * its transfers. Until a destination's link rate is known, transfers to it
+ * are not compressed, and while compressing, every so often one transfer
+ * is sent uncompressed to measure the link again. Statistics are kept for a
+ * bounded number of recently used destinations.
+ */
+final class CompressionAdvisor {
+
+    static final int SAMPLE_SIZE = 16 * 1024;
+
+    // Payloads that compress to more than this are not worth deflating
+    private static final double MAX_USEFUL_RATIO = 0.9;
+
+    private static final double WEIGHT = 0.2;
+
+    private static final int PROBE_INTERVAL = 20;
+
+    static final class Stats {
+
+        private double ratio = 1.0;
+
+        private double linkBytesPerSecond = Double.NaN;
+
+        private long compressedTransfers;
+
+        private long uncompressedTransfers;
+
+        private long bytesSaved;
+
+        private int compressedSinceProbe;
+
+        private Stats copy() {
+            final Stats copy = new Stats();
+            copy.ratio = ratio;
+            copy.linkBytesPerSecond = linkBytesPerSecond;
+            copy.compressedTransfers = compressedTransfers;
+            copy.uncompressedTransfers = uncompressedTransfers;
+            copy.bytesSaved = bytesSaved;
+            return copy;
+        }
+
+        double getRatio() {
+            return ratio;
+        }
+
+        double getLinkBytesPerSecond() {
+            return linkBytesPerSecond;
+        }
+
+        long getCompressedTransfers() {
+            return compressedTransfers;
+        }
+
+        long getUncompressedTransfers() {
+            return uncompressedTransfers;
+        }
+
+        /**
+         * Estimated from the sampled ratio, since the site-to-site client
+         * does not report the compressed size.
+         */
+        long getBytesSaved() {
+            return bytesSaved;
+        }
+    }
+
+    private final Map<Destination, Stats> stats;
+
+    private double deflateBytesPerSecond = Double.NaN;
+
+    CompressionAdvisor(final int maxDestinations) {
+        this.stats = new LinkedHashMap<Destination, Stats>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Destination, Stats> eldest) {
+                return size() > maxDestinations;
+            }
+        };
+    }
+
+    /**
+     * Deflates a sample of a payload, as the site-to-site client would, and
+     * returns its compression ratio.
+     */
+    double sample(final byte[] data, final int length) {
+        if (length == 0) {
+            return 1.0;
+        }
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        final byte[] out = new byte[length + 64];
+        final long start = System.nanoTime();
+        int compressed = 0;
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            while (!deflater.finished() && compressed < out.length) {
+                compressed += deflater.deflate(out, compressed, out.length - compressed);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        final long elapsed = Math.max(1L, System.nanoTime() - start);
+        synchronized (this) {
+            deflateBytesPerSecond = average(deflateBytesPerSecond, length * 1e9 / elapsed);
+        }
+        return Math.min(1.0, (double) compressed / length);
+    }
+
+    /**
+     * Returns whether to compress a transfer to the destination, given the
+     * ratio of a sample of its payload, or NaN to go by earlier samples.
+     */
+    synchronized boolean shouldCompress(final Destination destination, final double sampleRatio) {
+        final Stats destinationStats = getOrCreate(destination);
+        if (!Double.isNaN(sampleRatio)) {
+            destinationStats.ratio = average(destinationStats.ratio, sampleRatio);
+        }
+        final double ratio = Double.isNaN(sampleRatio) ? destinationStats.ratio : sampleRatio;
+        if (ratio > MAX_USEFUL_RATIO || Double.isNaN(destinationStats.linkBytesPerSecond) || Double.isNaN(deflateBytesPerSecond)) {
+            return false;
+        }
+        if (destinationStats.compressedSinceProbe >= PROBE_INTERVAL) {
+            return false;
+        }
+        return destinationStats.linkBytesPerSecond < (1.0 - ratio) * deflateBytesPerSecond;
+    }
+
+    /**
+     * Records a successful transfer of the given number of payload bytes and
+     * returns the estimated number of bytes compression saved on it.
+     */
+    synchronized long record(final Destination destination, final boolean compressed, final long bytes, final long nanos) {
+        final Stats destinationStats = getOrCreate(destination);
+        final double wireBytes = compressed ? bytes * destinationStats.ratio : bytes;
+        if (nanos > 0 && bytes > 0) {
+            destinationStats.linkBytesPerSecond = average(destinationStats.linkBytesPerSecond, wireBytes * 1e9 / nanos);
+        }
+        if (!compressed) {
+            destinationStats.uncompressedTransfers++;
+            destinationStats.compressedSinceProbe = 0;
+            return 0L;
+        }
+        final long saved = (long) (bytes - wireBytes);
+        destinationStats.compressedTransfers++;
+        destinationStats.compressedSinceProbe++;
+        destinationStats.bytesSaved += saved;
+        return saved;
+    }
+
+    /**
+     * Returns a snapshot of the statistics for a destination, or null if
+     * none are kept for it.
+     */
+    synchronized Stats getStats(final Destination destination) {
+        final Stats destinationStats = stats.get(destination);
+        return (destinationStats == null) ? null : destinationStats.copy();
+    }
+
+    private Stats getOrCreate(final Destination destination) {
+        Stats destinationStats = stats.get(destination);
+        if (destinationStats == null) {
+            destinationStats = new Stats();
+            stats.put(destination, destinationStats);
+        }
+        return destinationStats;
+    }
+
+    private static double average(final double current, final double sample) {
+        return Double.isNaN(current) ? sample : current + WEIGHT * (sample - current);
+    }
+}
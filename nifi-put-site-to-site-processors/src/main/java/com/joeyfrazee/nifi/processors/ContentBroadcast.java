@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a stream once and hands the same chunks to several consumers, each
+ * reading from its own {@link InputStream} on its own thread. Each consumer
+ * buffers at most a fixed number of chunks, so memory use is bounded and
+ * the publisher moves at the pace of the slowest consumer that is still
+ * reading. A consumer that closes its stream early is skipped from then on.
+ * A consumer that waits longer than the timeout for its next chunk fails
+ * rather than waiting on a publisher that may never run.
+ */
+final class ContentBroadcast {
+
+    private static final byte[] END = new byte[0];
+
+    private static final byte[] ABORT = new byte[0];
+
+    private final List<Subscriber> subscribers;
+
+    private final int chunkSize;
+
+    ContentBroadcast(final int subscriberCount, final int chunkSize, final int chunksPerSubscriber, final long timeout, final TimeUnit unit) {
+        final List<Subscriber> subscribers = new ArrayList<Subscriber>(subscriberCount);
+        for (int i = 0; i < subscriberCount; i++) {
+            subscribers.add(new Subscriber(chunksPerSubscriber, unit.toNanos(timeout)));
+        }
+        this.subscribers = Collections.unmodifiableList(subscribers);
+        this.chunkSize = chunkSize;
+    }
+
+    InputStream getSubscriber(final int index) {
+        return subscribers.get(index);
+    }
+
+    /**
+     * Copies the given stream to every subscriber that is still open. If
+     * reading fails, every subscriber sees an IOException instead of the
+     * end of the stream.
+     */
+    void publish(final InputStream in) throws IOException {
+        boolean complete = false;
+        try {
+            while (true) {
+                final byte[] chunk = new byte[chunkSize];
+                int len = 0;
+                int n;
+                while (len < chunk.length && (n = in.read(chunk, len, chunk.length - len)) != -1) {
+                    len += n;
+                }
+                if (len == 0) {
+                    break;
+                }
+                final byte[] data = (len == chunk.length) ? chunk : Arrays.copyOf(chunk, len);
+                for (final Subscriber subscriber : subscribers) {
+                    subscriber.offer(data);
+                }
+                if (len < chunk.length) {
+                    break;
+                }
+            }
+            complete = true;
+        }
+        finally {
+            for (final Subscriber subscriber : subscribers) {
+                subscriber.offer(complete ? END : ABORT);
+            }
+        }
+    }
+
+    /**
+     * Fails every subscriber without waiting for them, for when the content
+     * could not be read and {@link #publish(InputStream)} was never called
+     * or did not finish.
+     */
+    void abort() {
+        for (final Subscriber subscriber : subscribers) {
+            subscriber.abort();
+        }
+    }
+
+    private static final class Subscriber extends InputStream {
+
+        private final BlockingQueue<byte[]> queue;
+
+        private final long timeoutNanos;
+
+        private volatile boolean closed;
+
+        private byte[] current;
+
+        private int position;
+
+        private boolean finished;
+
+        private Subscriber(final int capacity, final long timeoutNanos) {
+            this.queue = new ArrayBlockingQueue<byte[]>(capacity);
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        private void offer(final byte[] chunk) throws IOException {
+            try {
+                while (!closed && !queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    // the consumer is still working through earlier chunks
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while handing content to a destination");
+            }
+        }
+
+        private void abort() {
+            // Whatever is still queued is of no use once the read has failed
+            queue.clear();
+            queue.offer(ABORT);
+        }
+
+        private boolean fill() throws IOException {
+            if (finished) {
+                return false;
+            }
+            while (current == null || position == current.length) {
+                final byte[] chunk;
+                try {
+                    chunk = queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for content");
+                }
+                if (chunk == null) {
+                    finished = true;
+                    throw new InterruptedIOException("Timed out waiting for content");
+                }
+                if (chunk == END) {
+                    finished = true;
+                    return false;
+                }
+                if (chunk == ABORT) {
+                    finished = true;
+                    throw new IOException("Reading the content failed");
+                }
+                current = chunk;
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+}
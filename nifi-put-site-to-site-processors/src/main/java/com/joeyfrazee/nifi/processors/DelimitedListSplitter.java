@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Splits a delimited list into its values the same way as a commons-csv
+ * parser with the default format: values are separated by the delimiter or
+ * by line breaks, and empty lines are skipped. Lists without the quote
+ * character are split by walking the string directly, without a parser or
+ * any objects other than the values themselves. Only lists with quotes are
+ * handed to {@link CSVParser}.
+ */
+final class DelimitedListSplitter {
+
+    interface Handler {
+        void value(String value);
+    }
+
+    private final char delimiter;
+
+    private final char quote;
+
+    private final boolean trim;
+
+    private final CSVFormat format;
+
+    DelimitedListSplitter(final char delimiter, final char quote, final boolean trim) {
+        this.delimiter = delimiter;
+        this.quote = quote;
+        this.trim = trim;
+        this.format = CSVFormat.DEFAULT
+            .withDelimiter(delimiter)
+            .withQuote(quote)
+            .withIgnoreSurroundingSpaces(trim);
+    }
+
+    /**
+     * Passes each value in the list to the handler, in order. If the list
+     * cannot be parsed, an exception is thrown before any value is passed.
+     */
+    void split(final String list, final Handler handler) throws IOException {
+        split(list, 0, Integer.MAX_VALUE, handler);
+    }
+
+    /**
+     * Passes at most limit values to the handler, starting with the value at
+     * the given offset, and returns whether there are values after them.
+     * Skipped values are not copied out of the list.
+     */
+    boolean split(final String list, final int offset, final int limit, final Handler handler) throws IOException {
+        final int end = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        if (isQuoted(list)) {
+            final List<String> values = parse(list);
+            for (int i = offset; i < Math.min(end, values.size()); i++) {
+                handler.value(values.get(i));
+            }
+            return values.size() > end;
+        }
+
+        final int length = list.length();
+        int index = 0;
+        int start = 0;
+        boolean lineHasValues = false;
+        for (int i = 0; i < length; i++) {
+            final char c = list.charAt(i);
+            if (c != delimiter && c != '\n' && c != '\r') {
+                continue;
+            }
+            if (c == delimiter || lineHasValues || i > start) {
+                if (index == end) {
+                    return true;
+                }
+                if (index >= offset) {
+                    emit(list, start, i, handler);
+                }
+                index++;
+            }
+            if (c == '\r' && i + 1 < length && list.charAt(i + 1) == '\n') {
+                i++;
+            }
+            start = i + 1;
+            lineHasValues = c == delimiter;
+        }
+        if (lineHasValues || length > start) {
+            if (index == end) {
+                return true;
+            }
+            if (index >= offset) {
+                emit(list, start, length, handler);
+            }
+        }
+        return false;
+    }
+
+    private void emit(final String list, int start, int end, final Handler handler) {
+        if (trim) {
+            while (start < end && Character.isWhitespace(list.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(list.charAt(end - 1))) {
+                end--;
+            }
+        }
+        handler.value(list.substring(start, end));
+    }
+
+    /**
+     * Returns whether the list has to be handed to the parser. A quoted list
+     * can only be split from its start, so callers that split it in chunks
+     * should {@link #parse} it once and keep the values.
+     */
+    boolean isQuoted(final String list) {
+        return list.indexOf(quote) >= 0;
+    }
+
+    /**
+     * Returns all of the values in the list.
+     */
+    List<String> parse(final String list) throws IOException {
+        final List<String> values = new ArrayList<String>();
+        try (final CSVParser parser = CSVParser.parse(list, format)) {
+            for (final CSVRecord record : parser) {
+                for (final String value : record) {
+                    values.add(value);
+                }
+            }
+        }
+        catch (IllegalStateException e) {
+            throw new IOException(e);
+        }
+        return values;
+    }
+}
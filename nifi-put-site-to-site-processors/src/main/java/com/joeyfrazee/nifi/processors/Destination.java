@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+/**
+ * A remote NiFi instance and input port that FlowFiles are sent to.
+ */
+public final class Destination {
+
+    private final String url;
+
+    private final String portName;
+
+    public Destination(final String url, final String portName) {
+        this.url = url;
+        this.portName = portName;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getPortName() {
+        return portName;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Destination)) {
+            return false;
+        }
+        final Destination other = (Destination) o;
+        return url.equals(other.url) && portName.equals(other.portName);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * url.hashCode() + portName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return portName + " at " + url;
+    }
+}
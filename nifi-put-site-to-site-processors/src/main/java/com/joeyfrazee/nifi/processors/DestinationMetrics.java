@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.util.*;
+
+/**
+ * Per-destination transfer metrics: latency histograms for each phase of a
+ * site-to-site transaction, throughput, client cache hits and misses, and
+ * failures, along with the number of open circuits. Metrics are kept for a
+ * bounded number of destinations; when the limit is reached, the least
+ * recently used destination's metrics are dropped, so thousands of dynamic
+ * destinations take bounded memory.
+ */
+public final class DestinationMetrics {
+
+    public enum Phase { SEND, CONFIRM, COMPLETE }
+
+    /**
+     * A latency histogram with power-of-two microsecond buckets, so its size
+     * does not depend on the number of values recorded. Percentiles are
+     * accurate to within a factor of two.
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = 40;
+
+        private final long[] counts = new long[BUCKETS];
+
+        private long count;
+
+        private long totalNanos;
+
+        private long maxNanos;
+
+        private void record(final long nanos) {
+            final long micros = Math.max(0L, nanos) / 1000L;
+            final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts[bucket]++;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        private Histogram copy() {
+            final Histogram copy = new Histogram();
+            System.arraycopy(counts, 0, copy.counts, 0, BUCKETS);
+            copy.count = count;
+            copy.totalNanos = totalNanos;
+            copy.maxNanos = maxNanos;
+            return copy;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return (count == 0) ? 0L : totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Returns an upper bound on the given percentile, from 0 to 100, of
+         * the recorded latencies.
+         */
+        public long getPercentileNanos(final double percentile) {
+            if (count == 0) {
+                return 0L;
+            }
+            final long rank = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    return Math.min(maxNanos, (1L << bucket) * 1000L);
+                }
+            }
+            return maxNanos;
+        }
+    }
+
+    /**
+     * A copy of the metrics for one destination.
+     */
+    public static final class Snapshot {
+
+        private final Map<Phase, Histogram> latencies = new EnumMap<Phase, Histogram>(Phase.class);
+
+        private long flowFiles;
+
+        private long bytes;
+
+        private long transferNanos;
+
+        private long cacheHits;
+
+        private long cacheMisses;
+
+        private long failures;
+
+        private Snapshot() {
+            for (final Phase phase : Phase.values()) {
+                latencies.put(phase, new Histogram());
+            }
+        }
+
+        private Snapshot copy() {
+            final Snapshot copy = new Snapshot();
+            for (final Phase phase : Phase.values()) {
+                copy.latencies.put(phase, latencies.get(phase).copy());
+            }
+            copy.flowFiles = flowFiles;
+            copy.bytes = bytes;
+            copy.transferNanos = transferNanos;
+            copy.cacheHits = cacheHits;
+            copy.cacheMisses = cacheMisses;
+            copy.failures = failures;
+            return copy;
+        }
+
+        public Histogram getLatency(final Phase phase) {
+            return latencies.get(phase);
+        }
+
+        public long getFlowFiles() {
+            return flowFiles;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the bytes sent per second spent transferring, so that
+         * idle time does not hide a slow destination.
+         */
+        public double getBytesPerSecond() {
+            return (transferNanos == 0) ? 0.0 : bytes * 1e9 / transferNanos;
+        }
+
+        public double getFlowFilesPerSecond() {
+            return (transferNanos == 0) ? 0.0 : flowFiles * 1e9 / transferNanos;
+        }
+
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        public long getCacheMisses() {
+            return cacheMisses;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+    }
+
+    private final Map<Destination, Snapshot> metrics;
+
+    private long evicted;
+
+    private int openCircuits;
+
+    public DestinationMetrics(final int maxDestinations) {
+        this.metrics = new LinkedHashMap<Destination, Snapshot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Destination, Snapshot> eldest) {
+                if (size() > maxDestinations) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized void recordLatency(final Destination destination, final Phase phase, final long nanos) {
+        getOrCreate(destination).latencies.get(phase).record(nanos);
+    }
+
+    /**
+     * Records FlowFiles that were sent successfully and the time it took,
+     * from creating the transaction to completing it.
+     */
+    public synchronized void recordTransfer(final Destination destination, final int flowFiles, final long bytes, final long nanos) {
+        final Snapshot destinationMetrics = getOrCreate(destination);
+        destinationMetrics.flowFiles += flowFiles;
+        destinationMetrics.bytes += bytes;
+        destinationMetrics.transferNanos += nanos;
+    }
+
+    public synchronized void recordClient(final Destination destination, final boolean cached) {
+        final Snapshot destinationMetrics = getOrCreate(destination);
+        if (cached) {
+            destinationMetrics.cacheHits++;
+        }
+        else {
+            destinationMetrics.cacheMisses++;
+        }
+    }
+
+    public synchronized void recordFailure(final Destination destination) {
+        getOrCreate(destination).failures++;
+    }
+
+    /**
+     * Returns a copy of the metrics for a destination, or null if none are
+     * kept for it.
+     */
+    public synchronized Snapshot getSnapshot(final Destination destination) {
+        final Snapshot destinationMetrics = metrics.get(destination);
+        return (destinationMetrics == null) ? null : destinationMetrics.copy();
+    }
+
+    /**
+     * Returns a copy of the metrics for every destination, least recently
+     * used first.
+     */
+    public synchronized Map<Destination, Snapshot> getSnapshots() {
+        final Map<Destination, Snapshot> snapshots = new LinkedHashMap<Destination, Snapshot>();
+        for (final Map.Entry<Destination, Snapshot> entry : metrics.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().copy());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Returns the destinations that metrics are kept for, most recently
+     * used first.
+     */
+    public synchronized List<Destination> getDestinations() {
+        final List<Destination> destinations = new ArrayList<Destination>(metrics.keySet());
+        Collections.reverse(destinations);
+        return destinations;
+    }
+
+    public synchronized int size() {
+        return metrics.size();
+    }
+
+    /**
+     * Returns how many destinations' metrics have been dropped to stay
+     * within the limit.
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * Returns the number of destinations whose circuit is open right now.
+     * This is a gauge rather than a total: it goes down as circuits close,
+     * and to 0 when the processor stops and its circuits are forgotten.
+     */
+    public synchronized int getOpenCircuitCount() {
+        return openCircuits;
+    }
+
+    synchronized void setOpenCircuitCount(final int openCircuits) {
+        this.openCircuits = openCircuits;
+    }
+
+    private Snapshot getOrCreate(final Destination destination) {
+        Snapshot destinationMetrics = metrics.get(destination);
+        if (destinationMetrics == null) {
+            destinationMetrics = new Snapshot();
+            metrics.put(destination, destinationMetrics);
+        }
+        return destinationMetrics;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many tasks may send to the same destination at once, so that a
+ * slow destination can only hold up as many tasks as its limit allows and
+ * the rest keep serving other destinations. Only destinations with tasks in
+ * flight are tracked.
+ */
+final class DestinationScheduler {
+
+    private final int maxPerDestination;
+
+    private final Map<Destination, Integer> active = new HashMap<Destination, Integer>();
+
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * @param maxPerDestination the number of tasks allowed per destination,
+     *        or 0 for no limit
+     */
+    DestinationScheduler(final int maxPerDestination) {
+        this.maxPerDestination = maxPerDestination;
+    }
+
+    synchronized boolean tryAcquire(final Destination destination) {
+        if (maxPerDestination <= 0) {
+            return true;
+        }
+        final Integer count = active.get(destination);
+        final int n = (count == null) ? 0 : count;
+        if (n >= maxPerDestination) {
+            return false;
+        }
+        active.put(destination, n + 1);
+        return true;
+    }
+
+    synchronized void release(final Destination destination) {
+        if (maxPerDestination <= 0) {
+            return;
+        }
+        final Integer count = active.get(destination);
+        if (count == null || count <= 1) {
+            active.remove(destination);
+        }
+        else {
+            active.put(destination, count - 1);
+        }
+    }
+
+    synchronized int getActiveCount(final Destination destination) {
+        final Integer count = active.get(destination);
+        return (count == null) ? 0 : count;
+    }
+
+    /**
+     * Returns the given groups in round-robin order, starting from a
+     * different one on each call, so that no destination is always served
+     * first.
+     */
+    <T> List<T> rotate(final List<T> groups) {
+        if (groups.size() < 2) {
+            return groups;
+        }
+        final int offset = (rotation.getAndIncrement() & Integer.MAX_VALUE) % groups.size();
+        final List<T> rotated = new ArrayList<T>(groups.size());
+        rotated.addAll(groups.subList(offset, groups.size()));
+        rotated.addAll(groups.subList(0, offset));
+        return rotated;
+    }
+}
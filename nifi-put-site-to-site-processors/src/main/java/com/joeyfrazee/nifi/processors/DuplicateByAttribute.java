@@ -16,43 +16,106 @@
  */
 package com.joeyfrazee.nifi.processors;
 
+import java.io.*;
 import java.util.*;
 
+import com.joeyfrazee.nifi.lookup.DestinationLookupService;
+import com.joeyfrazee.nifi.lookup.LookupResult;
+
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.*;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.EventDriven;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-
 @EventDriven
 @SupportsBatching
 @Tags({"duplicate", "clone", "copy", "fan-out"})
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @CapabilityDescription("Duplicates, clones, copies or fans-out FlowFiles " +
-    "according to a comma-separated list. Along with the expression " +
+    "according to a delimited list. Along with the expression " +
     "language, this can be used to send FlowFiles to multiple destinations " +
-    "specified in a dynamic attribute, ExecuteSQL resultset, etc.")
+    "specified in a dynamic attribute, ExecuteSQL resultset, etc. Further " +
+    "lists can be added as dynamic properties and are combined with the " +
+    "first one as a cartesian product or zipped, so that all of the clones " +
+    "come out of a single pass.")
+@DynamicProperty(name = "The name of an output attribute",
+    value = "The name of an attribute holding a further list to duplicate by",
+    supportsExpressionLanguage = true,
+    description = "Each value of the list is written to the output attribute " +
+        "and combined with the values of the other lists according to the " +
+        "'Combination Strategy'")
+@WritesAttributes({
+    @WritesAttribute(attribute = DuplicateByAttribute.CURSOR_ATTRIBUTE, description = "The index of the next value to " +
+        "duplicate by, set on a FlowFile whose list is only partly done when 'Max Clones per Trigger' is reached. The " +
+        "FlowFile is returned to the incoming queue and the attribute is removed once the whole list is done."),
+    @WritesAttribute(attribute = DuplicateByAttribute.LIST_FINGERPRINT_ATTRIBUTE, description = "A SHA-256 hash of the list " +
+        "found by the 'Destination Lookup Service', set together with '" + DuplicateByAttribute.CURSOR_ATTRIBUTE + "'. Later " +
+        "chunks use the list kept in memory for the FlowFile; if the processor no longer has it, the list is looked up " +
+        "again and the FlowFile is routed to failure if it no longer matches. Removed with the cursor.")
+})
 public class DuplicateByAttribute extends AbstractProcessor {
 
+    public static final String CURSOR_ATTRIBUTE = "duplicate.cursor";
+
+    public static final String LIST_FINGERPRINT_ATTRIBUTE = "duplicate.list.fingerprint";
+
+    private static final int MAX_PINNED_LISTS = 1000;
+
+    public static final AllowableValue FORMAT_DELIMITED = new AllowableValue("Delimited", "Delimited",
+        "The list is split on the 'Delimiter' and on line breaks");
+
+    public static final AllowableValue FORMAT_JSON = new AllowableValue("JSON", "JSON",
+        "The list is a JSON array. The fields of each object are written to " +
+        "attributes of the same name; any other element is written to the " +
+        "'Output Attribute'.");
+
+    public static final AllowableValue COMBINATION_CARTESIAN = new AllowableValue("Cartesian Product", "Cartesian Product",
+        "One clone is created for every combination of values, varying the " +
+        "values of the last list (by property name) fastest");
+
+    public static final AllowableValue COMBINATION_ZIP = new AllowableValue("Zip", "Zip",
+        "The nth clone gets the nth value of every list. Lists of different " +
+        "lengths are routed to failure.");
+
+    private static final Validator SINGLE_CHARACTER_VALIDATOR = new Validator() {
+        @Override
+        public ValidationResult validate(final String subject, final String input, final ValidationContext context) {
+            return new ValidationResult.Builder()
+                .subject(subject)
+                .input(input)
+                .valid(input != null && input.length() == 1)
+                .explanation("must be a single character")
+                .build();
+        }
+    };
+
     public static final PropertyDescriptor ATTRIBUTE_TO_DUPLICATE_BY = new PropertyDescriptor
             .Builder().name("Attribute to Duplicate By")
             .description(
                 "The name of the attribute to duplicate by. The contents of " +
-                "this attribute should be a comma-separated list of values. " +
+                "this attribute should be a list of values separated by the " +
+                "'Delimiter' or by line breaks. " +
                 "Each value will be saved as a new attribute with the name " +
-                "specified in 'Output Attribute'."
+                "specified in 'Output Attribute'. If a 'Destination Lookup " +
+                "Service' is set, the attribute holds a routing key instead, " +
+                "and the list is the one the service finds for that key."
             )
             .expressionLanguageSupported(true)
             .required(true)
@@ -70,6 +133,106 @@ public class DuplicateByAttribute extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor DESTINATION_LOOKUP_SERVICE = new PropertyDescriptor
+            .Builder().name("Destination Lookup Service")
+            .description(
+                "The controller service used to resolve the routing key in " +
+                "the 'Attribute to Duplicate By' to the list of values to " +
+                "duplicate by"
+            )
+            .required(false)
+            .identifiesControllerService(DestinationLookupService.class)
+            .build();
+
+    public static final PropertyDescriptor LIST_FORMAT = new PropertyDescriptor
+            .Builder().name("List Format")
+            .description(
+                "The format of the list in the 'Attribute to Duplicate By'"
+            )
+            .required(true)
+            .allowableValues(FORMAT_DELIMITED, FORMAT_JSON)
+            .defaultValue(FORMAT_DELIMITED.getValue())
+            .build();
+
+    public static final PropertyDescriptor COMBINATION_STRATEGY = new PropertyDescriptor
+            .Builder().name("Combination Strategy")
+            .description(
+                "How the values of the lists in dynamic properties are " +
+                "combined with the values of the 'Attribute to Duplicate By'"
+            )
+            .required(true)
+            .allowableValues(COMBINATION_CARTESIAN, COMBINATION_ZIP)
+            .defaultValue(COMBINATION_CARTESIAN.getValue())
+            .build();
+
+    public static final PropertyDescriptor DELIMITER = new PropertyDescriptor
+            .Builder().name("Delimiter")
+            .description(
+                "The character that separates the values in the list"
+            )
+            .required(true)
+            .defaultValue(",")
+            .addValidator(SINGLE_CHARACTER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor QUOTE_CHARACTER = new PropertyDescriptor
+            .Builder().name("Quote Character")
+            .description(
+                "The character used to quote values that contain the " +
+                "'Delimiter' or line breaks. Lists that contain it are " +
+                "parsed as CSV; all others are split directly."
+            )
+            .required(true)
+            .defaultValue("\"")
+            .addValidator(SINGLE_CHARACTER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TRIM_VALUES = new PropertyDescriptor
+            .Builder().name("Trim Values")
+            .description(
+                "Whether to remove leading and trailing whitespace from each " +
+                "value"
+            )
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor MAX_CLONES_PER_TRIGGER = new PropertyDescriptor
+            .Builder().name("Max Clones per Trigger")
+            .description(
+                "The maximum number of clones to create each time the " +
+                "processor is triggered, across all of the FlowFiles in the " +
+                "batch. Once it is reached no further FlowFiles are taken " +
+                "from the queue. If a list is longer than what is left, the " +
+                "FlowFile is returned to the incoming queue with its " +
+                "position in the '" + CURSOR_ATTRIBUTE + "' attribute and " +
+                "the rest of the list is done over later triggers, so that " +
+                "each session stays small and back pressure on 'success' is " +
+                "honored between chunks. A list with quotes is parsed once " +
+                "and kept in memory for the later chunks, and so is a list " +
+                "found by the 'Destination Lookup Service', with its hash in " +
+                "the '" + LIST_FINGERPRINT_ATTRIBUTE + "' attribute. The " +
+                "original is only " +
+                "routed once the whole list is done. 0 means no limit."
+            )
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("Batch Size")
+            .description(
+                "The maximum number of FlowFiles to duplicate each time the " +
+                "processor is triggered, as long as 'Max Clones per Trigger' " +
+                "is not reached first"
+            )
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description(
@@ -97,11 +260,41 @@ public class DuplicateByAttribute extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    private volatile DelimitedListSplitter splitter;
+
+    private final JsonListSplitter jsonSplitter = new JsonListSplitter();
+
+    private final PinnedLists pinnedLists = new PinnedLists(MAX_PINNED_LISTS);
+
+    private volatile DestinationLookupService lookupService;
+
+    private volatile boolean json;
+
+    private volatile boolean zip;
+
+    private volatile List<PropertyDescriptor> additionalLists;
+
+    private volatile int maxClonesPerTrigger;
+
+    private volatile int batchSize;
+
+    private volatile String literalAttributeToDuplicateBy;
+
+    private volatile String literalOutputAttribute;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
         descriptors.add(ATTRIBUTE_TO_DUPLICATE_BY);
         descriptors.add(OUTPUT_ATTRIBUTE);
+        descriptors.add(DESTINATION_LOOKUP_SERVICE);
+        descriptors.add(LIST_FORMAT);
+        descriptors.add(COMBINATION_STRATEGY);
+        descriptors.add(DELIMITER);
+        descriptors.add(QUOTE_CHARACTER);
+        descriptors.add(TRIM_VALUES);
+        descriptors.add(MAX_CLONES_PER_TRIGGER);
+        descriptors.add(BATCH_SIZE);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -121,44 +314,378 @@ public class DuplicateByAttribute extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+            .name(propertyDescriptorName)
+            .description("The attribute holding the list whose values are written to '" + propertyDescriptorName + "'")
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .dynamic(true)
+            .build();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<ValidationResult>();
+        final String delimiter = context.getProperty(DELIMITER).getValue();
+        final String quote = context.getProperty(QUOTE_CHARACTER).getValue();
+        if (delimiter != null && delimiter.equals(quote)) {
+            results.add(new ValidationResult.Builder()
+                .subject(QUOTE_CHARACTER.getName())
+                .valid(false)
+                .explanation(QUOTE_CHARACTER.getName() + " must be different from " + DELIMITER.getName())
+                .build());
+        }
+        if ("\r".equals(delimiter) || "\n".equals(delimiter)) {
+            results.add(new ValidationResult.Builder()
+                .subject(DELIMITER.getName())
+                .valid(false)
+                .explanation(DELIMITER.getName() + " cannot be a line break")
+                .build());
+        }
+        final boolean lookup = context.getProperty(DESTINATION_LOOKUP_SERVICE).isSet();
+        final boolean json = FORMAT_JSON.getValue().equals(context.getProperty(LIST_FORMAT).getValue());
+        if (lookup && json) {
+            results.add(new ValidationResult.Builder()
+                .subject(LIST_FORMAT.getName())
+                .valid(false)
+                .explanation(LIST_FORMAT.getName() + " must be " + FORMAT_DELIMITED.getValue() + " when a " + DESTINATION_LOOKUP_SERVICE.getName() + " is set")
+                .build());
+        }
+        if (lookup || json) {
+            for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
+                if (descriptor.isDynamic()) {
+                    results.add(new ValidationResult.Builder()
+                        .subject(descriptor.getName())
+                        .valid(false)
+                        .explanation("further lists are not supported with a " + DESTINATION_LOOKUP_SERVICE.getName() + " or the " + FORMAT_JSON.getValue() + " " + LIST_FORMAT.getName())
+                        .build());
+                }
+            }
+        }
+        return results;
+    }
+
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
+        splitter = new DelimitedListSplitter(
+            context.getProperty(DELIMITER).getValue().charAt(0),
+            context.getProperty(QUOTE_CHARACTER).getValue().charAt(0),
+            context.getProperty(TRIM_VALUES).asBoolean()
+        );
+        final int maxClones = context.getProperty(MAX_CLONES_PER_TRIGGER).asInteger();
+        maxClonesPerTrigger = maxClones == 0 ? Integer.MAX_VALUE : maxClones;
+        batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        lookupService = context.getProperty(DESTINATION_LOOKUP_SERVICE).asControllerService(DestinationLookupService.class);
+        json = FORMAT_JSON.getValue().equals(context.getProperty(LIST_FORMAT).getValue());
+        zip = COMBINATION_ZIP.getValue().equals(context.getProperty(COMBINATION_STRATEGY).getValue());
 
+        final List<PropertyDescriptor> additionalLists = new ArrayList<PropertyDescriptor>();
+        for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
+            if (descriptor.isDynamic()) {
+                additionalLists.add(descriptor);
+            }
+        }
+        additionalLists.sort((a, b) -> a.getName().compareTo(b.getName()));
+        this.additionalLists = additionalLists;
+        literalAttributeToDuplicateBy = PropertyValues.literalValue(context, ATTRIBUTE_TO_DUPLICATE_BY);
+        literalOutputAttribute = PropertyValues.literalValue(context, OUTPUT_ATTRIBUTE);
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
-            return;
+        // FlowFiles are taken one at a time, so that none are taken once the
+        // clone budget for this trigger is spent
+        int budget = maxClonesPerTrigger;
+        for (int i = 0; i < batchSize && budget > 0; i++) {
+            final FlowFile flowFile = session.get();
+            if (flowFile == null) {
+                return;
+            }
+            budget -= duplicate(context, session, flowFile, budget);
         }
+    }
+
+    /**
+     * Creates at most limit clones of the FlowFile and returns how many were
+     * created, including any removed again because the list failed.
+     */
+    private int duplicate(final ProcessContext context, final ProcessSession session, final FlowFile flowFile, final int limit) {
+        final String attributeToDuplicateBy = PropertyValues.evaluate(context, ATTRIBUTE_TO_DUPLICATE_BY, literalAttributeToDuplicateBy, flowFile);
+
+        final String outputAttribute = PropertyValues.evaluate(context, OUTPUT_ATTRIBUTE, literalOutputAttribute, flowFile);
 
-        String attributeToDuplicateBy = context.getProperty(ATTRIBUTE_TO_DUPLICATE_BY)
-            .evaluateAttributeExpressions(flowFile)
-            .getValue();
+        final String cursor = flowFile.getAttribute(CURSOR_ATTRIBUTE);
+        final String uuid = flowFile.getAttribute(CoreAttributes.UUID.key());
 
-        String outputAttribute = context.getProperty(OUTPUT_ATTRIBUTE)
-            .evaluateAttributeExpressions(flowFile)
-            .getValue();
+        final Set<String> attributesToRemove = new HashSet<String>(4);
+        attributesToRemove.add(attributeToDuplicateBy);
+        if (cursor != null) {
+            attributesToRemove.add(CURSOR_ATTRIBUTE);
+            attributesToRemove.add(LIST_FINGERPRINT_ATTRIBUTE);
+        }
+
+        final Map<String, String> lists;
+        if (additionalLists.isEmpty()) {
+            lists = null;
+        }
+        else {
+            lists = new LinkedHashMap<String, String>();
+            lists.put(outputAttribute, attributeToDuplicateBy);
+            for (final PropertyDescriptor descriptor : additionalLists) {
+                final String attribute = context.getProperty(descriptor).evaluateAttributeExpressions(flowFile).getValue();
+                lists.put(descriptor.getName(), attribute);
+                attributesToRemove.add(attribute);
+            }
+        }
+
+        final Cloner cloner = new Cloner(session, flowFile, attributesToRemove, outputAttribute);
+        FlowFile current = flowFile;
 
         try {
-            final String csv = flowFile.getAttribute(attributeToDuplicateBy);
-            final CSVParser parser = CSVParser.parse(csv, CSVFormat.DEFAULT);
-            for (final CSVRecord record : parser) {
-                for (final String v : record) {
-                    FlowFile copy = session.clone(flowFile);
-                    copy = session.removeAttribute(copy, attributeToDuplicateBy);
-                    copy = session.putAttribute(copy, outputAttribute, v);
-                    session.transfer(copy, REL_SUCCESS);
+            final String list = flowFile.getAttribute(attributeToDuplicateBy);
+            final int offset = (cursor == null) ? 0 : Integer.parseInt(cursor);
+            final boolean remaining;
+            String fingerprint = null;
+            if (lookupService != null && cursor != null) {
+                remaining = cloneEach(pinnedList(session, uuid, list, flowFile.getAttribute(LIST_FINGERPRINT_ATTRIBUTE)), offset, limit, cloner);
+            }
+            else if (lookupService != null) {
+                final List<String> values = lookUp(session, list);
+                remaining = cloneEach(values, offset, limit, cloner);
+                if (remaining) {
+                    pinnedLists.put(uuid, values);
+                    fingerprint = PinnedLists.fingerprint(values);
+                }
+            }
+            else if (json) {
+                remaining = jsonSplitter.split(list, offset, limit, outputAttribute, cloner);
+            }
+            else if (lists == null && list != null && splitter.isQuoted(list)) {
+                // A quoted list can only be parsed from its start, so it is
+                // parsed once and pinned for the later chunks
+                final List<String> pinned = (cursor == null) ? null : pinnedLists.get(uuid);
+                final List<String> values = (pinned == null) ? splitter.parse(list) : pinned;
+                remaining = cloneEach(values, offset, limit, cloner);
+                if (remaining && pinned == null) {
+                    pinnedLists.put(uuid, values);
+                }
+            }
+            else if (lists == null) {
+                remaining = splitter.split(list, offset, limit, cloner);
+            }
+            else {
+                remaining = combine(flowFile, lists, offset, limit, cloner);
+            }
+            current = cloner.finish();
+
+            if (remaining) {
+                // A looked-up list is pinned in memory, with its hash on the
+                // FlowFile, so that a refresh of the service's cache cannot
+                // shift the list between chunks
+                final Map<String, String> resume = new HashMap<String, String>(2);
+                resume.put(CURSOR_ATTRIBUTE, String.valueOf(offset + limit));
+                if (fingerprint != null) {
+                    resume.put(LIST_FINGERPRINT_ATTRIBUTE, fingerprint);
                 }
+                session.transfer(session.putAllAttributes(current, resume));
+                return cloner.getCreated();
             }
+            pinnedLists.remove(uuid);
         }
         catch (Exception e) {
+            current = cloner.abandon();
+            pinnedLists.remove(uuid);
             getLogger().error("{} value {} could not be parsed", new Object[]{ATTRIBUTE_TO_DUPLICATE_BY.getName(), attributeToDuplicateBy}, e);
-            session.transfer(flowFile, REL_FAILURE);
-            return;
+            session.transfer(withoutCursor(session, current, cursor), REL_FAILURE);
+            return cloner.getCreated();
+        }
+
+        session.transfer(withoutCursor(session, current, cursor), REL_ORIGINAL);
+        return cloner.getCreated();
+    }
+
+    int getPinnedListCount() {
+        return pinnedLists.size();
+    }
+
+    private List<String> lookUp(final ProcessSession session, final String key) throws IOException {
+        final LookupResult result = lookupService.lookup(key);
+        session.adjustCounter(result.isCached() ? "Destination Lookup Cache Hits" : "Destination Lookup Cache Misses", 1, false);
+
+        final List<String> values = result.getDestinations();
+        if (values == null) {
+            throw new IOException("No list was found for routing key " + key);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the list pinned for a FlowFile by its first chunk. If it is no
+     * longer pinned, e.g. after a restart, the list is looked up again and
+     * only used if it is the one the first chunk had.
+     */
+    private List<String> pinnedList(final ProcessSession session, final String uuid, final String key, final String fingerprint) throws IOException {
+        final List<String> pinned = pinnedLists.get(uuid);
+        if (pinned != null) {
+            return pinned;
+        }
+        final List<String> values = lookUp(session, key);
+        if (!PinnedLists.fingerprint(values).equals(fingerprint)) {
+            throw new IOException("The list for routing key " + key + " has changed since the first chunk was duplicated");
+        }
+        pinnedLists.put(uuid, values);
+        return values;
+    }
+
+    private static boolean cloneEach(final List<String> values, final int offset, final int limit, final Cloner cloner) {
+        final long end = Math.min(values.size(), (long) offset + limit);
+        for (int i = offset; i < end; i++) {
+            cloner.value(values.get(i));
+        }
+        return values.size() > end;
+    }
+
+    /**
+     * Passes the combinations of values from several lists, keyed by output
+     * attribute, in the same offset and limit window as the splitters.
+     */
+    private boolean combine(final FlowFile flowFile, final Map<String, String> lists, final int offset, final int limit, final Cloner cloner) throws IOException {
+        final String[] outputs = new String[lists.size()];
+        final List<List<String>> values = new ArrayList<List<String>>(lists.size());
+        for (final Map.Entry<String, String> entry : lists.entrySet()) {
+            final List<String> list = new ArrayList<String>();
+            splitter.split(flowFile.getAttribute(entry.getValue()), list::add);
+            outputs[values.size()] = entry.getKey();
+            values.add(list);
+        }
+
+        long total;
+        if (zip) {
+            total = values.get(0).size();
+            for (final List<String> list : values) {
+                if (list.size() != total) {
+                    throw new IOException("Lists to zip do not all have the same number of values");
+                }
+            }
+        }
+        else {
+            total = 1;
+            for (final List<String> list : values) {
+                total *= list.size();
+                if (total > Integer.MAX_VALUE) {
+                    throw new IOException("Lists have more than " + Integer.MAX_VALUE + " combinations");
+                }
+            }
+        }
+
+        final long end = Math.min(total, (long) offset + limit);
+        for (long index = offset; index < end; index++) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            long rest = index;
+            for (int i = outputs.length - 1; i >= 0; i--) {
+                final List<String> list = values.get(i);
+                if (zip) {
+                    attributes.put(outputs[i], list.get((int) index));
+                }
+                else {
+                    attributes.put(outputs[i], list.get((int) (rest % list.size())));
+                    rest /= list.size();
+                }
+            }
+            cloner.values(attributes);
+        }
+        return total > end;
+    }
+
+    private static FlowFile withoutCursor(final ProcessSession session, final FlowFile flowFile, final String cursor) {
+        return (cursor == null) ? flowFile : session.removeAllAttributes(flowFile, new HashSet<String>(Arrays.asList(CURSOR_ATTRIBUTE, LIST_FINGERPRINT_ATTRIBUTE)));
+    }
+
+    /**
+     * Creates the clones for one FlowFile. Every clone is cloned from the
+     * original, so that provenance records the incoming FlowFile as the
+     * parent of each of them however the list is chunked. The attributes that
+     * clones should not carry are removed from the original once, before the
+     * first clone, and put back when the clones are done, so each clone only
+     * needs its output attributes set. Clones are only transferred once every
+     * value has been handled, so a list that fails part way leaves no clones
+     * behind.
+     */
+    private static final class Cloner implements DelimitedListSplitter.Handler, JsonListSplitter.Handler {
+
+        private final ProcessSession session;
+
+        private final Set<String> attributesToRemove;
+
+        private final String outputAttribute;
+
+        private final List<FlowFile> clones = new ArrayList<FlowFile>();
+
+        private FlowFile original;
+
+        private Map<String, String> removed;
+
+        private int created;
+
+        private Cloner(final ProcessSession session, final FlowFile original, final Set<String> attributesToRemove, final String outputAttribute) {
+            this.session = session;
+            this.original = original;
+            this.attributesToRemove = attributesToRemove;
+            this.outputAttribute = outputAttribute;
         }
 
-        session.transfer(flowFile, REL_ORIGINAL);
+        @Override
+        public void value(final String value) {
+            values(Collections.singletonMap(outputAttribute, value));
+        }
+
+        @Override
+        public void values(final Map<String, String> attributes) {
+            created++;
+            if (removed == null) {
+                removed = new HashMap<String, String>();
+                for (final String attribute : attributesToRemove) {
+                    final String value = original.getAttribute(attribute);
+                    if (value != null) {
+                        removed.put(attribute, value);
+                    }
+                }
+                original = session.removeAllAttributes(original, attributesToRemove);
+            }
+            clones.add(session.putAllAttributes(session.clone(original), attributes));
+        }
+
+        private int getCreated() {
+            return created;
+        }
+
+        /**
+         * Transfers the clones and returns the current version of the
+         * original.
+         */
+        private FlowFile finish() {
+            session.transfer(clones, REL_SUCCESS);
+            clones.clear();
+            return restore();
+        }
+
+        /**
+         * Removes the clones and returns the current version of the original.
+         */
+        private FlowFile abandon() {
+            session.remove(clones);
+            clones.clear();
+            return restore();
+        }
+
+        private FlowFile restore() {
+            if (removed != null) {
+                original = session.putAllAttributes(original, removed);
+                removed = null;
+            }
+            return original;
+        }
     }
 }
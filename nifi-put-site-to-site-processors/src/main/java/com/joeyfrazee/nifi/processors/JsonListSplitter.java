@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.util.*;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Splits a JSON array into sets of attributes, one per element. The fields
+ * of an object become attributes of the same name; any other element is
+ * written to a default attribute. Nested objects and arrays are kept as
+ * JSON and null fields are left out.
+ */
+final class JsonListSplitter {
+
+    interface Handler {
+        void values(Map<String, String> attributes);
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Passes at most limit elements to the handler, starting with the
+     * element at the given offset, and returns whether there are elements
+     * after them. The whole array is checked before any element is passed,
+     * so a malformed array passes nothing.
+     */
+    boolean split(final String json, final int offset, final int limit, final String defaultAttribute, final Handler handler) throws IOException {
+        final int end = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        final List<Map<String, String>> elements = new ArrayList<Map<String, String>>();
+        int index = 0;
+        try (final JsonParser parser = MAPPER.getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected a JSON array");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new IOException("Unexpected end of JSON array");
+                }
+                if (index >= offset && index < end) {
+                    elements.add(readElement(parser, token, defaultAttribute));
+                }
+                else {
+                    parser.skipChildren();
+                }
+                index++;
+            }
+            if (parser.nextToken() != null) {
+                throw new IOException("Unexpected content after JSON array");
+            }
+        }
+        for (final Map<String, String> element : elements) {
+            handler.values(element);
+        }
+        return index > end;
+    }
+
+    private static Map<String, String> readElement(final JsonParser parser, final JsonToken token, final String defaultAttribute) throws IOException {
+        if (token != JsonToken.START_OBJECT) {
+            final String value = readValue(parser, token);
+            return (value == null) ? Collections.<String, String>emptyMap() : Collections.singletonMap(defaultAttribute, value);
+        }
+        final Map<String, String> attributes = new HashMap<String, String>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final String value = readValue(parser, parser.nextToken());
+            if (value != null) {
+                attributes.put(name, value);
+            }
+        }
+        return attributes;
+    }
+
+    private static String readValue(final JsonParser parser, final JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_NULL:
+                return null;
+            case START_OBJECT:
+            case START_ARRAY:
+                return MAPPER.writeValueAsString(parser.readValueAsTree());
+            default:
+                return parser.getValueAsString();
+        }
+    }
+}
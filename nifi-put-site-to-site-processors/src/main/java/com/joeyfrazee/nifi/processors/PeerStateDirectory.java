@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A local directory holding site-to-site state that should survive a
+ * restart: one peer persistence file per client, written by the
+ * site-to-site client, and the list of recently used destinations, whose
+ * clients are built ahead of time on the next start.
+ */
+final class PeerStateDirectory {
+
+    private static final String RECENT_DESTINATIONS = "recent-destinations";
+
+    private final File directory;
+
+    PeerStateDirectory(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the file that the client for the cache key persists its peers
+     * to. Names are hashes of every part of the key, so clients that differ
+     * only in transport or security never share a peer list, and any URL and
+     * port name make a valid file name.
+     */
+    File getPeerFile(final SiteToSiteClientCache.Key key) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final Destination destination = key.getDestination();
+        final String id = destination.getUrl() + '\n' + destination.getPortName()
+            + '\n' + key.getTransportProtocol()
+            + '\n' + key.isUseCompression()
+            + '\n' + key.getSslContextServiceId()
+            + '\n' + key.getClientAuth();
+        final byte[] hash = digest.digest(id.getBytes(StandardCharsets.UTF_8));
+        final StringBuilder name = new StringBuilder("peers-");
+        for (final byte b : hash) {
+            name.append(String.format("%02x", b));
+        }
+        return new File(directory, name.toString());
+    }
+
+    /**
+     * Returns the destinations written by the last stop, most recently used
+     * first, or an empty list if there are none.
+     */
+    List<Destination> readRecentDestinations() throws IOException {
+        final File file = new File(directory, RECENT_DESTINATIONS);
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        final List<Destination> destinations = new ArrayList<Destination>();
+        for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            final int tab = line.indexOf('\t');
+            if (tab > 0 && tab < line.length() - 1) {
+                destinations.add(new Destination(line.substring(0, tab), line.substring(tab + 1)));
+            }
+        }
+        return destinations;
+    }
+
+    /**
+     * Replaces the list of recently used destinations, most recently used
+     * first, so that a crash while writing leaves the previous list.
+     */
+    void writeRecentDestinations(final List<Destination> destinations) throws IOException {
+        final File temp = new File(directory, RECENT_DESTINATIONS + ".tmp");
+        try (final Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            for (final Destination destination : destinations) {
+                writer.write(destination.getUrl() + '\t' + destination.getPortName() + '\n');
+            }
+        }
+        Files.move(temp.toPath(), new File(directory, RECENT_DESTINATIONS).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
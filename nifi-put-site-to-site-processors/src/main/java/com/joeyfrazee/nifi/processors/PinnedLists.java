@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The lists of FlowFiles whose fan-out is done in chunks, kept in memory
+ * between triggers and keyed by FlowFile UUID, so that later chunks neither
+ * look up nor parse the list again. At most maxEntries lists are kept, least
+ * recently used first out, and nothing survives the processor instance: a
+ * chunk whose list is gone has to find it again.
+ */
+final class PinnedLists {
+
+    private final LinkedHashMap<String, List<String>> lists;
+
+    PinnedLists(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.lists = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, List<String>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized List<String> get(final String uuid) {
+        return lists.get(uuid);
+    }
+
+    synchronized void put(final String uuid, final List<String> values) {
+        lists.put(uuid, values);
+    }
+
+    synchronized void remove(final String uuid) {
+        lists.remove(uuid);
+    }
+
+    synchronized int size() {
+        return lists.size();
+    }
+
+    /**
+     * Returns a SHA-256 hash of the values, in order, as hex, so that a list
+     * found again can be checked against the one a FlowFile started with.
+     */
+    static String fingerprint(final List<String> values) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (final String value : values) {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            digest.update((byte) (bytes.length >>> 24));
+            digest.update((byte) (bytes.length >>> 16));
+            digest.update((byte) (bytes.length >>> 8));
+            digest.update((byte) bytes.length);
+            digest.update(bytes);
+        }
+        final StringBuilder hex = new StringBuilder(64);
+        for (final byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
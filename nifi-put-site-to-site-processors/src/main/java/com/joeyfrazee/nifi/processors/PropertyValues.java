@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+
+/**
+ * Lets processors resolve properties that do not use the Expression
+ * Language once per start, and only evaluate the others per FlowFile.
+ */
+final class PropertyValues {
+
+    private PropertyValues() {
+    }
+
+    /**
+     * Returns the value of the property if it is set and has no Expression
+     * Language, or null if it has to be evaluated for each FlowFile.
+     */
+    static String literalValue(final ProcessContext context, final PropertyDescriptor descriptor) {
+        final String value = context.getProperty(descriptor).getValue();
+        return (value == null || value.contains("${")) ? null : value;
+    }
+
+    /**
+     * Returns the literal value resolved by {@link #literalValue} if there is
+     * one, or else the property evaluated against the FlowFile.
+     */
+    static String evaluate(final ProcessContext context, final PropertyDescriptor descriptor, final String literal, final FlowFile flowFile) {
+        if (literal != null) {
+            return literal;
+        }
+        return context.getProperty(descriptor)
+            .evaluateAttributeExpressions(flowFile)
+            .getValue();
+    }
+}
@@ -18,28 +18,54 @@ package com.joeyfrazee.nifi.processors;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.SSLContext;
 
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.FlowFileFilter.FlowFileFilterResult;
 import org.apache.nifi.ssl.SSLContextService;
 import org.apache.nifi.ssl.SSLContextService.ClientAuth;
 import org.apache.nifi.annotation.behavior.EventDriven;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
+import org.apache.nifi.util.FlowFilePackager;
+import org.apache.nifi.util.FlowFilePackagerV3;
 
 import org.apache.nifi.remote.Transaction;
 import org.apache.nifi.remote.TransferDirection;
 import org.apache.nifi.remote.client.SiteToSiteClient;
 import org.apache.nifi.remote.client.SiteToSiteClientConfig;
+import org.apache.nifi.remote.protocol.DataPacket;
+import org.apache.nifi.remote.protocol.SiteToSiteTransportProtocol;
+import org.apache.nifi.remote.util.StandardDataPacket;
 
 @EventDriven
 @SupportsBatching
@@ -47,13 +73,71 @@ import org.apache.nifi.remote.client.SiteToSiteClientConfig;
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @CapabilityDescription("Site-to-site file transfer to a remote URL and " +
     "port specified via properties or FlowFile attributes")
+@WritesAttributes({
+    @WritesAttribute(attribute = PutSiteToSite.FAILED_DESTINATIONS, description = "The comma-separated " +
+        "remote URLs from 'Destinations Attribute' that a FlowFile could not be sent to. When present, " +
+        "only these are retried, and only by the processor that wrote them."),
+    @WritesAttribute(attribute = PutSiteToSite.FAILED_DESTINATIONS_PROCESSOR, description = "The identifier " +
+        "of the processor that wrote '" + PutSiteToSite.FAILED_DESTINATIONS + "'."),
+    @WritesAttribute(attribute = PutSiteToSite.OPEN_CIRCUITS, description = "The comma-separated " +
+        "remote URLs that were skipped because their circuit breaker was open.")
+})
 public class PutSiteToSite extends AbstractProcessor {
 
+    public static final String FAILED_DESTINATIONS = "s2s.failed.destinations";
+
+    public static final String FAILED_DESTINATIONS_PROCESSOR = "s2s.failed.destinations.processor";
+
+    public static final String OPEN_CIRCUITS = "s2s.circuit.open";
+
+    private static final int MAX_SKIPPED_FLOWFILES = 1000;
+
+    private static final int BROADCAST_CHUNK_SIZE = 64 * 1024;
+
+    private static final int BROADCAST_CHUNKS_PER_DESTINATION = 16;
+
+    private static final int MAX_COMPRESSION_STATS = 10000;
+
+    public static final String PACKED_COUNT = "s2s.packed.count";
+
+    private static final String FLOWFILE_V3_MIME_TYPE = "application/flowfile-v3";
+
+    public static final AllowableValue PACKING_NONE = new AllowableValue("None", "None",
+        "Each FlowFile is sent as its own data packet");
+
+    public static final AllowableValue PACKING_FLOWFILE_V3 = new AllowableValue("FlowFile Stream, v3", "FlowFile Stream, v3",
+        "FlowFiles going to the same destination are packed, content and " +
+        "attributes, into data packets in the FlowFile Stream v3 format, " +
+        "which UnpackContent can unpack on the receiving side");
+
+    private static final Validator TRANSPORT_PROTOCOL_VALIDATOR = new Validator() {
+        @Override
+        public ValidationResult validate(final String subject, final String input, final ValidationContext context) {
+            if (context.isExpressionLanguageSupported(subject) && context.isExpressionLanguagePresent(input)) {
+                return new ValidationResult.Builder()
+                    .subject(subject)
+                    .input(input)
+                    .valid(true)
+                    .explanation("Expression Language Present")
+                    .build();
+            }
+            return new ValidationResult.Builder()
+                .subject(subject)
+                .input(input)
+                .valid(input != null && parseTransportProtocol(input) != null)
+                .explanation("must be RAW or HTTP")
+                .build();
+        }
+    };
+
     public static final PropertyDescriptor REMOTE_URL = new PropertyDescriptor
             .Builder().name("Remote URL")
-            .description("URL of the remote NiFi instance")
+            .description(
+                "URL of the remote NiFi instance. Required unless " +
+                "'Destinations Attribute' is set."
+            )
             .expressionLanguageSupported(true)
-            .required(true)
+            .required(false)
             .addValidator(StandardValidators.URL_VALIDATOR)
             .build();
 
@@ -65,14 +149,157 @@ public class PutSiteToSite extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor TRANSPORT_PROTOCOL = new PropertyDescriptor
+            .Builder().name("Transport Protocol")
+            .description(
+                "The site-to-site transport to use, RAW or HTTP. RAW uses the " +
+                "remote instance's site-to-site socket port; HTTP goes " +
+                "through its web port, which helps where other ports are " +
+                "blocked. HTTP connections are kept open and reused by the " +
+                "cached client for the destination until they have been idle " +
+                "for 'Connection Idle Expiration'. When this uses expression " +
+                "language, it is evaluated for each FlowFile, so different " +
+                "destinations can use different transports."
+            )
+            .expressionLanguageSupported(true)
+            .required(true)
+            .defaultValue(SiteToSiteTransportProtocol.RAW.name())
+            .addValidator(TRANSPORT_PROTOCOL_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DESTINATIONS_ATTRIBUTE = new PropertyDescriptor
+            .Builder().name("Destinations Attribute")
+            .description(
+                "The name of an attribute holding a comma-separated list of " +
+                "remote URLs. When a FlowFile has this attribute, its " +
+                "content is sent to the input port at every URL in the " +
+                "list, in parallel, instead of to 'Remote URL'. If some of " +
+                "the destinations fail, the FlowFile is routed to failure " +
+                "with the failed URLs in the '" + FAILED_DESTINATIONS + "' " +
+                "attribute, and only those are retried when it comes back " +
+                "to this processor. FlowFiles sent to a single destination " +
+                "are routed by their attributes again on every attempt."
+            )
+            .expressionLanguageSupported(true)
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_CONCURRENT_SENDS = new PropertyDescriptor
+            .Builder().name("Max Concurrent Sends")
+            .description(
+                "The maximum number of destinations from 'Destinations " +
+                "Attribute' that are sent to at the same time, shared by all " +
+                "concurrent tasks. A FlowFile with more destinations than " +
+                "this is sent in several rounds."
+            )
+            .required(true)
+            .defaultValue("10")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONTENT_CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("Content Cache Size")
+            .description(
+                "The maximum amount of FlowFile content, shared by all " +
+                "concurrent tasks, to hold in memory while it is sent to the " +
+                "destinations in 'Destinations Attribute'. This is a memory " +
+                "budget for fan-out, not a cache: content held in memory is " +
+                "read once for its FlowFile and replayed to every " +
+                "destination, then dropped. Content that does not fit is " +
+                "streamed to all destinations at once from a single read " +
+                "instead."
+            )
+            .required(true)
+            .defaultValue("64 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_CACHEABLE_CONTENT_SIZE = new PropertyDescriptor
+            .Builder().name("Max Cacheable Content Size")
+            .description(
+                "FlowFiles larger than this are never held in memory for " +
+                "fan-out and are always streamed."
+            )
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_IN_FLIGHT_TRANSACTIONS = new PropertyDescriptor
+            .Builder().name("Max In-Flight Transactions")
+            .description(
+                "The maximum number of transactions per destination that " +
+                "may be waiting for the remote instance to confirm them " +
+                "while the next one is being sent. A batch going to one " +
+                "destination is split into up to this many transactions. " +
+                "FlowFiles are only routed once their own transaction is " +
+                "confirmed, so a failed transaction routes only its own " +
+                "FlowFiles to failure. Values above 1 help on links with " +
+                "long round trips."
+            )
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_TASKS_PER_DESTINATION = new PropertyDescriptor
+            .Builder().name("Max Concurrent Tasks per Destination")
+            .description(
+                "The maximum number of concurrent tasks that may send to the " +
+                "same remote URL and input port at once. FlowFiles for a " +
+                "destination that is at its limit are left in the queue and " +
+                "the FlowFiles behind them are sent instead, so one slow " +
+                "destination cannot take up every task. A FlowFile sent to " +
+                "several destinations counts against the limit of each of " +
+                "them, and is left in the queue if any of them is at its " +
+                "limit. Destinations in a batch are served in round-robin " +
+                "order. A value of 0 means no limit."
+            )
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CIRCUIT_BREAKER_FAILURE_THRESHOLD = new PropertyDescriptor
+            .Builder().name("Circuit Breaker Failure Threshold")
+            .description(
+                "The number of consecutive failed transfers to a remote URL " +
+                "and input port after which its circuit is opened. While a " +
+                "circuit is open, FlowFiles for that destination are routed " +
+                "to failure right away without trying to connect. A value " +
+                "of 0 disables the circuit breaker."
+            )
+            .required(true)
+            .defaultValue("5")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CIRCUIT_BREAKER_COOL_DOWN = new PropertyDescriptor
+            .Builder().name("Circuit Breaker Cool-down Period")
+            .description(
+                "How long a circuit stays open before a single trial " +
+                "transfer is let through. If the trial succeeds the circuit " +
+                "closes, otherwise it stays open for another period."
+            )
+            .required(true)
+            .defaultValue("30 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
     public static final PropertyDescriptor USE_COMPRESSION = new PropertyDescriptor
             .Builder().name("Use Compression")
             .description(
                 "Specifies whether or not data should be compressed before " +
-                "being transferred to or from the remote instance."
+                "being transferred to or from the remote instance. With " +
+                "'auto', the choice is made for each transaction by sampling " +
+                "how well its content compresses and comparing the time " +
+                "that would save on the destination's measured link speed " +
+                "with the time compressing takes. Transfers to a destination " +
+                "are not compressed until its link speed has been measured."
             )
             .required(true)
-            .allowableValues("true", "false")
+            .allowableValues("true", "false", "auto")
             .defaultValue("false")
             .build();
 
@@ -97,6 +324,181 @@ public class PutSiteToSite extends AbstractProcessor {
             .defaultValue(SSLContextService.ClientAuth.REQUIRED.name())
             .build();
 
+    public static final PropertyDescriptor MAX_CACHED_CLIENTS = new PropertyDescriptor
+            .Builder().name("Max Cached Clients")
+            .description(
+                "The maximum number of site-to-site clients to keep open, " +
+                "one per distinct remote URL, input port, compression, SSL " +
+                "setting and transport protocol. When the limit is reached, " +
+                "the least recently used client is closed."
+            )
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CLIENT_IDLE_EXPIRATION = new PropertyDescriptor
+            .Builder().name("Client Idle Expiration")
+            .description(
+                "The amount of time a cached site-to-site client can go " +
+                "unused before it is closed."
+            )
+            .required(true)
+            .defaultValue("5 mins")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor COMMUNICATIONS_TIMEOUT = new PropertyDescriptor
+            .Builder().name("Communications Timeout")
+            .description(
+                "How long to wait for the remote instance when connecting, " +
+                "sending or waiting for a response before the transfer fails"
+            )
+            .required(true)
+            .defaultValue("30 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONNECTION_IDLE_EXPIRATION = new PropertyDescriptor
+            .Builder().name("Connection Idle Expiration")
+            .description(
+                "How long a client keeps an unused connection to a remote " +
+                "peer open for reuse before closing it"
+            )
+            .required(true)
+            .defaultValue("30 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_COUNT = new PropertyDescriptor
+            .Builder().name("Batch Count")
+            .description(
+                "The maximum number of FlowFiles to pull from the queue at " +
+                "once. FlowFiles going to the same remote URL and input " +
+                "port are sent in a single site-to-site transaction, and if " +
+                "that transaction fails all of them are routed to failure."
+            )
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("Batch Size")
+            .description(
+                "The maximum total size of the FlowFiles to pull from the " +
+                "queue at once. At least one FlowFile is always pulled, " +
+                "regardless of its size."
+            )
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_DURATION = new PropertyDescriptor
+            .Builder().name("Batch Duration")
+            .description(
+                "The maximum amount of time to keep sending FlowFiles in a " +
+                "single transaction before it is confirmed. Any FlowFiles " +
+                "left in the batch are sent in a new transaction."
+            )
+            .required(true)
+            .defaultValue("5 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PACKING_FORMAT = new PropertyDescriptor
+            .Builder().name("Packing Format")
+            .description(
+                "Whether to pack several FlowFiles into each data packet, " +
+                "which saves the per-packet framing and attributes when " +
+                "FlowFiles are small. Only FlowFiles pulled in the same batch " +
+                "are packed together, so 'Batch Count' should be raised as " +
+                "well. FlowFiles sent to several destinations at once, and " +
+                "FlowFiles larger than 'Max Packet Size', are not packed. " +
+                "Each packet has the attribute '" + PACKED_COUNT + "' and a " +
+                "mime.type of " + FLOWFILE_V3_MIME_TYPE + "."
+            )
+            .required(true)
+            .allowableValues(PACKING_NONE, PACKING_FLOWFILE_V3)
+            .defaultValue(PACKING_NONE.getValue())
+            .build();
+
+    public static final PropertyDescriptor MAX_PACKET_COUNT = new PropertyDescriptor
+            .Builder().name("Max FlowFiles per Packet")
+            .description("The maximum number of FlowFiles to pack into one data packet")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_PACKET_SIZE = new PropertyDescriptor
+            .Builder().name("Max Packet Size")
+            .description(
+                "The maximum size of the content of the FlowFiles packed " +
+                "into one data packet. Packets are built in memory."
+            )
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_PACKING_DURATION = new PropertyDescriptor
+            .Builder().name("Max Packing Duration")
+            .description(
+                "The maximum amount of time to spend adding FlowFiles to one " +
+                "data packet before it is sent"
+            )
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_METRICS_DESTINATIONS = new PropertyDescriptor
+            .Builder().name("Max Destinations with Metrics")
+            .description(
+                "The maximum number of remote URLs and input ports to keep " +
+                "latency, throughput, client cache and failure metrics for. " +
+                "When the limit is reached, the metrics of the least " +
+                "recently used destination are dropped. Totals over all " +
+                "destinations are also kept as processor counters."
+            )
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PEER_STATE_DIRECTORY = new PropertyDescriptor
+            .Builder().name("Peer State Directory")
+            .description(
+                "A local directory to keep site-to-site state in across " +
+                "restarts. Each client persists the remote cluster's peers " +
+                "to its own file there, one per destination, transport and " +
+                "security setting, so that a new client does not have to " +
+                "rediscover them, and the most recently used " +
+                "destinations are recorded when the processor stops so that " +
+                "their clients can be pre-warmed on the next start. If not " +
+                "set, no state is kept."
+            )
+            .required(false)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .build();
+
+    public static final PropertyDescriptor MAX_PREWARMED_CLIENTS = new PropertyDescriptor
+            .Builder().name("Max Pre-warmed Clients")
+            .description(
+                "The maximum number of recently used destinations from " +
+                "'Peer State Directory' whose clients are built and " +
+                "connected in the background when the processor starts, " +
+                "at most 'Max Concurrent Sends' at a time. A value of 0 " +
+                "disables pre-warming, and so does expression language in " +
+                "'Transport Protocol'."
+            )
+            .required(true)
+            .defaultValue("10")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description(
@@ -117,23 +519,104 @@ public class PutSiteToSite extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
-    private SiteToSiteClient getClient(String url, String port, boolean useCompression, SSLContext sslContext) {
-      SiteToSiteClient.Builder configBuilder = new SiteToSiteClient.Builder()
-          .url(url)
-          .portName(port)
-          .useCompression(useCompression);
+    private volatile SiteToSiteClientCache clientCache;
+
+    private volatile ExecutorService sendExecutor;
+
+    private volatile ScheduledExecutorService idleReaper;
+
+    private volatile Semaphore sendPermits;
+
+    private volatile int maxConcurrentSends;
 
-      if (sslContext != null) {
-          configBuilder = configBuilder.sslContext(sslContext);
-      }
+    private volatile long contentCacheSize;
 
-      final SiteToSiteClientConfig config = configBuilder.buildConfig();
+    private volatile long maxCacheableContentSize;
 
-      final SiteToSiteClient client = new SiteToSiteClient.Builder()
-         .fromConfig(config)
-         .build();
+    private final AtomicLong cachedContentBytes = new AtomicLong();
 
-      return client;
+    private volatile CircuitBreakers circuitBreakers;
+
+    private volatile DestinationScheduler scheduler;
+
+    private volatile int maxInFlightTransactions;
+
+    private volatile boolean useCompression;
+
+    private volatile boolean autoCompression;
+
+    private volatile CompressionAdvisor compressionAdvisor;
+
+    private volatile DestinationMetrics metrics;
+
+    private volatile PeerStateDirectory peerStateDirectory;
+
+    // Counter updates from sender threads, which cannot use the session
+    private final Map<String, AtomicLong> pendingCounters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private volatile String clientAuth;
+
+    private volatile String sslContextServiceId;
+
+    private volatile SSLContext sslContext;
+
+    private volatile int batchCount;
+
+    private volatile long batchSize;
+
+    private volatile long batchDuration;
+
+    private volatile long communicationsTimeout;
+
+    private volatile long connectionIdleExpiration;
+
+    // The values of properties that use no expression language, or null
+    private volatile String literalRemoteUrl;
+
+    private volatile String literalRemoteInputPort;
+
+    private volatile String literalTransportProtocol;
+
+    private volatile String literalDestinationsAttribute;
+
+    private volatile boolean destinationsAttributeSet;
+
+    private volatile boolean packing;
+
+    private volatile int maxPacketCount;
+
+    private volatile long maxPacketSize;
+
+    private volatile long maxPackingDuration;
+
+    protected SiteToSiteClient createClient(final SiteToSiteClientConfig config) {
+        return new SiteToSiteClient.Builder()
+            .fromConfig(config)
+            .build();
+    }
+
+    private SiteToSiteClient getClient(final SiteToSiteClientCache.Key key) {
+        SiteToSiteClient.Builder configBuilder = new SiteToSiteClient.Builder()
+            .url(key.getDestination().getUrl())
+            .portName(key.getDestination().getPortName())
+            .useCompression(key.isUseCompression())
+            .transportProtocol(key.getTransportProtocol())
+            .timeout(communicationsTimeout, TimeUnit.MILLISECONDS)
+            .idleExpiration(connectionIdleExpiration, TimeUnit.MILLISECONDS);
+
+        final PeerStateDirectory peerStateDirectory = this.peerStateDirectory;
+        if (peerStateDirectory != null) {
+            configBuilder = configBuilder.peerPersistenceFile(peerStateDirectory.getPeerFile(key));
+        }
+
+        final SSLContext sslContext = this.sslContext;
+        if (sslContext != null) {
+            configBuilder = configBuilder.sslContext(sslContext);
+        }
+
+        final SiteToSiteClientConfig config = configBuilder.buildConfig();
+
+        return createClient(config);
     }
 
     @Override
@@ -141,9 +624,32 @@ public class PutSiteToSite extends AbstractProcessor {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
         descriptors.add(REMOTE_URL);
         descriptors.add(REMOTE_INPUT_PORT);
+        descriptors.add(TRANSPORT_PROTOCOL);
+        descriptors.add(DESTINATIONS_ATTRIBUTE);
+        descriptors.add(MAX_CONCURRENT_SENDS);
+        descriptors.add(CONTENT_CACHE_SIZE);
+        descriptors.add(MAX_CACHEABLE_CONTENT_SIZE);
+        descriptors.add(MAX_IN_FLIGHT_TRANSACTIONS);
+        descriptors.add(MAX_TASKS_PER_DESTINATION);
+        descriptors.add(CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+        descriptors.add(CIRCUIT_BREAKER_COOL_DOWN);
         descriptors.add(USE_COMPRESSION);
         descriptors.add(SSL_CONTEXT_SERVICE);
         descriptors.add(CLIENT_AUTH);
+        descriptors.add(MAX_CACHED_CLIENTS);
+        descriptors.add(CLIENT_IDLE_EXPIRATION);
+        descriptors.add(COMMUNICATIONS_TIMEOUT);
+        descriptors.add(CONNECTION_IDLE_EXPIRATION);
+        descriptors.add(BATCH_COUNT);
+        descriptors.add(BATCH_SIZE);
+        descriptors.add(BATCH_DURATION);
+        descriptors.add(PACKING_FORMAT);
+        descriptors.add(MAX_PACKET_COUNT);
+        descriptors.add(MAX_PACKET_SIZE);
+        descriptors.add(MAX_PACKING_DURATION);
+        descriptors.add(MAX_METRICS_DESTINATIONS);
+        descriptors.add(PEER_STATE_DIRECTORY);
+        descriptors.add(MAX_PREWARMED_CLIENTS);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -162,62 +668,908 @@ public class PutSiteToSite extends AbstractProcessor {
         return this.descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<ValidationResult>();
+        if (!context.getProperty(REMOTE_URL).isSet() && !context.getProperty(DESTINATIONS_ATTRIBUTE).isSet()) {
+            results.add(new ValidationResult.Builder()
+                .subject(REMOTE_URL.getName())
+                .valid(false)
+                .explanation("either " + REMOTE_URL.getName() + " or " + DESTINATIONS_ATTRIBUTE.getName() + " must be set")
+                .build());
+        }
+        return results;
+    }
+
+    private static SiteToSiteTransportProtocol parseTransportProtocol(final String value) {
+        for (final SiteToSiteTransportProtocol protocol : SiteToSiteTransportProtocol.values()) {
+            if (protocol.name().equalsIgnoreCase(value.trim())) {
+                return protocol;
+            }
+        }
+        return null;
+    }
+
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
+        final String compression = context.getProperty(USE_COMPRESSION).getValue();
+        useCompression = "true".equals(compression);
+        autoCompression = "auto".equals(compression);
+        compressionAdvisor = new CompressionAdvisor(MAX_COMPRESSION_STATS);
+        clientAuth = context.getProperty(CLIENT_AUTH).getValue();
+        sslContextServiceId = context.getProperty(SSL_CONTEXT_SERVICE).getValue();
+
+        // A referenced controller service cannot change while the processor
+        // is running, so its keystores are loaded once per start
+        final SSLContextService sslContextService = context.getProperty(SSL_CONTEXT_SERVICE)
+            .asControllerService(SSLContextService.class);
+        sslContext = (sslContextService == null) ? null : sslContextService.createSSLContext(SSLContextService.ClientAuth.valueOf(clientAuth));
 
+        batchCount = context.getProperty(BATCH_COUNT).asInteger();
+        batchSize = context.getProperty(BATCH_SIZE).asDataSize(DataUnit.B).longValue();
+        batchDuration = context.getProperty(BATCH_DURATION).asTimePeriod(TimeUnit.NANOSECONDS);
+
+        packing = PACKING_FLOWFILE_V3.getValue().equals(context.getProperty(PACKING_FORMAT).getValue());
+        maxPacketCount = context.getProperty(MAX_PACKET_COUNT).asInteger();
+        maxPacketSize = context.getProperty(MAX_PACKET_SIZE).asDataSize(DataUnit.B).longValue();
+        maxPackingDuration = context.getProperty(MAX_PACKING_DURATION).asTimePeriod(TimeUnit.NANOSECONDS);
+
+        metrics = new DestinationMetrics(context.getProperty(MAX_METRICS_DESTINATIONS).asInteger());
+
+        final String peerStatePath = context.getProperty(PEER_STATE_DIRECTORY).getValue();
+        peerStateDirectory = (peerStatePath == null) ? null : new PeerStateDirectory(new File(peerStatePath));
+
+        literalRemoteUrl = PropertyValues.literalValue(context, REMOTE_URL);
+        literalRemoteInputPort = PropertyValues.literalValue(context, REMOTE_INPUT_PORT);
+        literalTransportProtocol = PropertyValues.literalValue(context, TRANSPORT_PROTOCOL);
+        communicationsTimeout = context.getProperty(COMMUNICATIONS_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        connectionIdleExpiration = context.getProperty(CONNECTION_IDLE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS);
+        literalDestinationsAttribute = PropertyValues.literalValue(context, DESTINATIONS_ATTRIBUTE);
+        destinationsAttributeSet = context.getProperty(DESTINATIONS_ATTRIBUTE).isSet();
+
+        final int maxCachedClients = context.getProperty(MAX_CACHED_CLIENTS).asInteger();
+        final long idleExpiration = context.getProperty(CLIENT_IDLE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS);
+        final SiteToSiteClientCache cache = new SiteToSiteClientCache(maxCachedClients, idleExpiration, TimeUnit.MILLISECONDS, this::getClient);
+        clientCache = cache;
+
+        // The processor is not triggered while its queue is empty, so idle
+        // clients are closed in the background rather than on the next send
+        final String reaperName = "PutSiteToSite[" + getIdentifier() + "] Idle Client Reaper";
+        idleReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, reaperName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final long reapInterval = Math.max(1L, idleExpiration / 2);
+        idleReaper.scheduleWithFixedDelay(cache::expireIdle, reapInterval, reapInterval, TimeUnit.MILLISECONDS);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final String threadPrefix = "PutSiteToSite[" + getIdentifier() + "] Sender-";
+        maxInFlightTransactions = context.getProperty(MAX_IN_FLIGHT_TRANSACTIONS).asInteger();
+
+        scheduler = new DestinationScheduler(context.getProperty(MAX_TASKS_PER_DESTINATION).asInteger());
+
+        circuitBreakers = new CircuitBreakers(
+            context.getProperty(CIRCUIT_BREAKER_FAILURE_THRESHOLD).asInteger(),
+            context.getProperty(CIRCUIT_BREAKER_COOL_DOWN).asTimePeriod(TimeUnit.MILLISECONDS),
+            TimeUnit.MILLISECONDS);
+
+        contentCacheSize = context.getProperty(CONTENT_CACHE_SIZE).asDataSize(DataUnit.B).longValue();
+        maxCacheableContentSize = context.getProperty(MAX_CACHEABLE_CONTENT_SIZE).asDataSize(DataUnit.B).longValue();
+
+        maxConcurrentSends = context.getProperty(MAX_CONCURRENT_SENDS).asInteger();
+        sendPermits = new Semaphore(maxConcurrentSends, true);
+        sendExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, threadPrefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (peerStateDirectory != null) {
+            prewarm(context.getProperty(MAX_PREWARMED_CLIENTS).asInteger());
+        }
+    }
+
+    /**
+     * Builds and connects clients for the destinations used most recently
+     * before the last stop, in the background, so that the first FlowFiles
+     * after a restart do not all wait for handshakes at once.
+     */
+    private void prewarm(final int maxClients) {
+        // Without a fixed transport there is no telling which client to build
+        if (literalTransportProtocol == null) {
+            return;
+        }
+        final SiteToSiteTransportProtocol transportProtocol = parseTransportProtocol(literalTransportProtocol);
+
+        final List<Destination> destinations;
+        try {
+            destinations = peerStateDirectory.readRecentDestinations();
+        }
+        catch (IOException e) {
+            getLogger().warn("Could not read the recently used destinations; no clients will be pre-warmed", e);
+            return;
+        }
+
+        final SiteToSiteClientCache cache = clientCache;
+        final Semaphore permits = sendPermits;
+        for (final Destination destination : destinations.subList(0, Math.min(maxClients, destinations.size()))) {
+            final SiteToSiteClientCache.Key key = new SiteToSiteClientCache.Key(destination, useCompression, sslContextServiceId, clientAuth, transportProtocol);
+            sendExecutor.execute(() -> {
+                try {
+                    permits.acquire();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try (final SiteToSiteClientCache.Lease lease = cache.acquire(key)) {
+                    try {
+                        final Transaction transaction = lease.getClient().createTransaction(TransferDirection.SEND);
+                        if (transaction != null) {
+                            transaction.cancel("Pre-warming the connection");
+                        }
+                    }
+                    catch (IOException | RuntimeException e) {
+                        lease.invalidate();
+                        throw e;
+                    }
+                }
+                catch (Exception e) {
+                    getLogger().debug("Could not pre-warm the client for {}", new Object[]{destination}, e);
+                }
+                finally {
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        final PeerStateDirectory peerStateDirectory = this.peerStateDirectory;
+        final DestinationMetrics metrics = this.metrics;
+        // A run without transfers leaves the list from the run before it
+        if (peerStateDirectory != null && metrics != null && metrics.size() > 0) {
+            try {
+                peerStateDirectory.writeRecentDestinations(metrics.getDestinations());
+            }
+            catch (IOException e) {
+                getLogger().warn("Could not record the recently used destinations", e);
+            }
+        }
+
+        final ScheduledExecutorService reaper = idleReaper;
+        idleReaper = null;
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+
+        // The circuits are forgotten on the next start
+        final DestinationMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.setOpenCircuitCount(0);
+        }
+
+        final ExecutorService executor = sendExecutor;
+        sendExecutor = null;
+        if (executor != null) {
+            executor.shutdown();
+        }
+
+        final SiteToSiteClientCache cache = clientCache;
+        clientCache = null;
+        if (cache != null) {
+            cache.close();
+        }
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
+        final int batchCount = this.batchCount;
+        final long batchSize = this.batchSize;
+        final boolean useCompression = this.useCompression;
+        final String clientAuth = this.clientAuth;
+        final String sslContextServiceId = this.sslContextServiceId;
+
+        // Destinations are resolved while pulling from the queue so that
+        // FlowFiles for destinations already at their concurrency limit can
+        // be left in the queue without holding up the ones behind them
+        final Map<String, List<SiteToSiteClientCache.Key>> resolved = new HashMap<String, List<SiteToSiteClientCache.Key>>();
+        final Set<Destination> reserved = new HashSet<Destination>();
+        final int[] skipped = new int[1];
+        final List<FlowFile> flowFiles = session.get(new FlowFileFilter() {
+            private int count;
+            private long bytes;
+
+            @Override
+            public FlowFileFilterResult filter(final FlowFile flowFile) {
+                if (count > 0 && bytes + flowFile.getSize() > batchSize) {
+                    return FlowFileFilterResult.REJECT_AND_TERMINATE;
+                }
+
+                // A FlowFile that fans out is only taken when every one of its
+                // destinations is below its limit
+                final List<SiteToSiteClientCache.Key> keys = resolveKeys(context, flowFile, useCompression, sslContextServiceId, clientAuth);
+                final Set<Destination> acquired = new HashSet<Destination>();
+                for (final SiteToSiteClientCache.Key key : keys) {
+                    final Destination destination = key.getDestination();
+                    if (reserved.contains(destination) || acquired.contains(destination)) {
+                        continue;
+                    }
+                    if (!scheduler.tryAcquire(destination)) {
+                        for (final Destination release : acquired) {
+                            scheduler.release(release);
+                        }
+                        skipped[0]++;
+                        return (skipped[0] < MAX_SKIPPED_FLOWFILES) ? FlowFileFilterResult.REJECT_AND_CONTINUE : FlowFileFilterResult.REJECT_AND_TERMINATE;
+                    }
+                    acquired.add(destination);
+                }
+                reserved.addAll(acquired);
+                resolved.put(flowFile.getAttribute(CoreAttributes.UUID.key()), keys);
+
+                count++;
+                bytes += flowFile.getSize();
+                return (count < batchCount) ? FlowFileFilterResult.ACCEPT_AND_CONTINUE : FlowFileFilterResult.ACCEPT_AND_TERMINATE;
+            }
+        });
+
+        try {
+            if (flowFiles.isEmpty()) {
+                if (skipped[0] > 0) {
+                    context.yield();
+                }
+            }
+            else {
+                dispatch(context, session, flowFiles, resolved);
+            }
+            adjustPendingCounters(session);
+        }
+        finally {
+            for (final Destination destination : reserved) {
+                scheduler.release(destination);
+            }
+        }
+    }
+
+    private void dispatch(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles,
+            final Map<String, List<SiteToSiteClientCache.Key>> resolved) {
+        final Map<SiteToSiteClientCache.Key, List<FlowFile>> groups = new LinkedHashMap<SiteToSiteClientCache.Key, List<FlowFile>>();
+        final Map<FlowFile, List<SiteToSiteClientCache.Key>> fanOuts = new LinkedHashMap<FlowFile, List<SiteToSiteClientCache.Key>>();
+        for (final FlowFile flowFile : flowFiles) {
+            final List<SiteToSiteClientCache.Key> keys = resolved.get(flowFile.getAttribute(CoreAttributes.UUID.key()));
+
+            if (keys == null || keys.isEmpty()) {
+                getLogger().error("Remote URL or input port for FlowFile {} is empty, or its transport protocol is " +
+                    "not RAW or HTTP; routing to failure", new Object[]{flowFile});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+                continue;
+            }
+
+            if (keys.size() > 1) {
+                fanOuts.put(flowFile, keys);
+                continue;
+            }
+
+            List<FlowFile> group = groups.get(keys.get(0));
+            if (group == null) {
+                group = new ArrayList<FlowFile>();
+                groups.put(keys.get(0), group);
+            }
+            group.add(flowFile);
+        }
+
+        for (final SiteToSiteClientCache.Key key : scheduler.rotate(new ArrayList<SiteToSiteClientCache.Key>(groups.keySet()))) {
+            send(session, key, groups.get(key), batchDuration);
+        }
+
+        for (final Map.Entry<FlowFile, List<SiteToSiteClientCache.Key>> fanOut : fanOuts.entrySet()) {
+            fanOut(session, fanOut.getKey(), fanOut.getValue());
+        }
+    }
+
+    private void adjustPendingCounters(final ProcessSession session) {
+        for (final Map.Entry<String, AtomicLong> counter : pendingCounters.entrySet()) {
+            final long delta = counter.getValue().getAndSet(0L);
+            if (delta != 0) {
+                session.adjustCounter(counter.getKey(), delta, false);
+            }
+        }
+    }
+
+    private List<SiteToSiteClientCache.Key> resolveKeys(final ProcessContext context, final FlowFile flowFile,
+            final boolean useCompression, final String sslContextServiceId, final String clientAuth) {
+        final List<String> remoteUrls = getRemoteUrls(context, flowFile);
+
+        final String remoteInputPort = PropertyValues.evaluate(context, REMOTE_INPUT_PORT, literalRemoteInputPort, flowFile);
+
+        if (remoteUrls.isEmpty() || isEmpty(remoteInputPort)) {
+            return Collections.emptyList();
+        }
+
+        final String transport = PropertyValues.evaluate(context, TRANSPORT_PROTOCOL, literalTransportProtocol, flowFile);
+        final SiteToSiteTransportProtocol transportProtocol = isEmpty(transport) ? null : parseTransportProtocol(transport);
+        if (transportProtocol == null) {
+            return Collections.emptyList();
+        }
+
+        final List<SiteToSiteClientCache.Key> keys = new ArrayList<SiteToSiteClientCache.Key>(remoteUrls.size());
+        for (final String remoteUrl : remoteUrls) {
+            keys.add(new SiteToSiteClientCache.Key(
+                new Destination(remoteUrl, remoteInputPort), useCompression, sslContextServiceId, clientAuth, transportProtocol));
+        }
+        return keys;
+    }
+
+    private List<String> getRemoteUrls(final ProcessContext context, final FlowFile flowFile) {
+        if (isRetryingFanOut(flowFile)) {
+            return splitUrls(flowFile.getAttribute(FAILED_DESTINATIONS));
+        }
+
+        if (destinationsAttributeSet) {
+            final String destinationsAttribute = PropertyValues.evaluate(context, DESTINATIONS_ATTRIBUTE, literalDestinationsAttribute, flowFile);
+            final String destinations = flowFile.getAttribute(destinationsAttribute);
+            if (!isEmpty(destinations)) {
+                return splitUrls(destinations);
+            }
+        }
+
+        final String remoteUrl = PropertyValues.evaluate(context, REMOTE_URL, literalRemoteUrl, flowFile);
+        return isEmpty(remoteUrl) ? Collections.<String>emptyList() : Collections.singletonList(remoteUrl);
+    }
+
+    /**
+     * Returns whether the FlowFile failed part of a fan-out from this
+     * processor, so that only the destinations that failed are retried.
+     * Failed destinations written by another processor say nothing about
+     * where this one should send the FlowFile.
+     */
+    private boolean isRetryingFanOut(final FlowFile flowFile) {
+        return destinationsAttributeSet
+            && !isEmpty(flowFile.getAttribute(FAILED_DESTINATIONS))
+            && getIdentifier().equals(flowFile.getAttribute(FAILED_DESTINATIONS_PROCESSOR));
+    }
+
+    private static List<String> splitUrls(final String value) {
+        final Set<String> urls = new LinkedHashSet<String>();
+        for (final String url : value.split(",")) {
+            final String trimmed = url.trim();
+            if (!trimmed.isEmpty()) {
+                urls.add(trimmed);
+            }
+        }
+        return new ArrayList<String>(urls);
+    }
+
+    /**
+     * Returns the per-destination metrics of the current or last run, or
+     * null if the processor has not been started.
+     */
+    public DestinationMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void adjustCounterLater(final String name, final long delta) {
+        pendingCounters.computeIfAbsent(name, n -> new AtomicLong()).addAndGet(delta);
+    }
+
+    private void recordClient(final Destination destination, final SiteToSiteClientCache.Lease lease) {
+        metrics.recordClient(destination, !lease.isNewClient());
+        adjustCounterLater(lease.isNewClient() ? "Client Cache Misses" : "Client Cache Hits", 1);
+    }
+
+    private void recordSent(final ProcessSession session, final int flowFiles, final long bytes) {
+        session.adjustCounter("FlowFiles Sent", flowFiles, false);
+        session.adjustCounter("Bytes Sent", bytes, false);
+    }
+
+    /**
+     * Returns the statistics behind the 'auto' compression decisions for a
+     * destination, or null if there are none.
+     */
+    CompressionAdvisor.Stats getCompressionStats(final Destination destination) {
+        final CompressionAdvisor advisor = compressionAdvisor;
+        return (advisor == null) ? null : advisor.getStats(destination);
+    }
+
+    /**
+     * Deflates the start of a FlowFile's content and returns how well it
+     * compresses, or NaN if it could not be read.
+     */
+    private double sampleCompression(final ProcessSession session, final FlowFile flowFile) {
+        final byte[] sample = new byte[(int) Math.min(CompressionAdvisor.SAMPLE_SIZE, flowFile.getSize())];
+        final int[] length = new int[1];
+        try {
+            session.read(flowFile, in -> length[0] = StreamUtils.fillBuffer(in, sample, false));
+        }
+        catch (Exception e) {
+            return Double.NaN;
+        }
+        return compressionAdvisor.sample(sample, length[0]);
+    }
+
+    private void recordCompression(final ProcessSession session, final SiteToSiteClientCache.Key key, final long bytesSaved) {
+        session.adjustCounter(key.isUseCompression() ? "Compressed Transactions" : "Uncompressed Transactions", 1, false);
+        if (bytesSaved > 0) {
+            session.adjustCounter("Compression Bytes Saved", bytesSaved, false);
+        }
+    }
+
+    private void send(final ProcessSession session, final SiteToSiteClientCache.Key key, final List<FlowFile> flowFiles, final long batchDuration) {
+        final Destination destination = key.getDestination();
+        if (!circuitBreakers.allowRequest(destination)) {
+            session.adjustCounter("Circuit Breaker Rejections", flowFiles.size(), false);
+            for (final FlowFile flowFile : flowFiles) {
+                transferToFailure(session, flowFile, Collections.singletonList(key), Collections.singletonList(key), isRetryingFanOut(flowFile));
+            }
             return;
         }
 
-        final String remoteUrl = context.getProperty(REMOTE_URL)
-            .evaluateAttributeExpressions(flowFile)
-            .getValue();
+        final SiteToSiteClientCache.Key clientKey = autoCompression
+            ? key.withCompression(compressionAdvisor.shouldCompress(destination, sampleCompression(session, flowFiles.get(0))))
+            : key;
+        final long sendStart = System.nanoTime();
 
-        final String remoteInputPort = context.getProperty(REMOTE_INPUT_PORT)
-            .evaluateAttributeExpressions(flowFile)
-            .getValue();
+        // With more than one transaction in flight, the group is split so
+        // that the next transaction is sent while earlier ones are waiting
+        // for their confirm/complete round trip
+        final int inFlightLimit = maxInFlightTransactions;
+        final int transactionSize = (flowFiles.size() + inFlightLimit - 1) / inFlightLimit;
 
-        final String useCompressionStr = context.getProperty(USE_COMPRESSION).getValue();
-        final boolean useCompression = (useCompressionStr == null) ? false : useCompressionStr.equals("true");
+        final List<List<FlowFile>> transactions = new ArrayList<List<FlowFile>>();
+        final List<Future<?>> completions = new ArrayList<Future<?>>();
+        int unsent = 0;
+        Exception sendFailure = null;
+        boolean failed = false;
 
-        final String clientAuth = context.getProperty(CLIENT_AUTH).getValue();
+        try (final SiteToSiteClientCache.Lease lease = clientCache.acquire(clientKey)) {
+            recordClient(destination, lease);
+            final Semaphore inFlight = new Semaphore(inFlightLimit);
+            try {
+                while (unsent < flowFiles.size()) {
+                    inFlight.acquire();
 
-        final SSLContextService sslContextService = context.getProperty(SSL_CONTEXT_SERVICE)
-            .asControllerService(SSLContextService.class);
+                    final long begun = System.nanoTime();
+                    final Transaction transaction;
+                    try {
+                        transaction = createTransaction(lease, key);
+                    }
+                    catch (Exception e) {
+                        inFlight.release();
+                        throw e;
+                    }
+
+                    final long start = System.nanoTime();
+                    final int end = Math.min(flowFiles.size(), unsent + transactionSize);
+                    int index = unsent;
+                    try {
+                        do {
+                            index = sendNext(session, transaction, flowFiles, index, end);
+                        } while (index < end && System.nanoTime() - start < batchDuration);
+                    }
+                    catch (Exception e) {
+                        inFlight.release();
+                        transaction.error();
+                        throw e;
+                    }
+
+                    final List<FlowFile> sent = flowFiles.subList(unsent, index);
+                    final long sentAt = System.nanoTime();
+                    metrics.recordLatency(destination, DestinationMetrics.Phase.SEND, sentAt - begun);
+
+                    final FutureTask<Void> completion = new FutureTask<Void>(() -> {
+                        try {
+                            transaction.confirm();
+                            final long confirmedAt = System.nanoTime();
+                            metrics.recordLatency(destination, DestinationMetrics.Phase.CONFIRM, confirmedAt - sentAt);
+                            transaction.complete();
+                            final long completedAt = System.nanoTime();
+                            metrics.recordLatency(destination, DestinationMetrics.Phase.COMPLETE, completedAt - confirmedAt);
+                            metrics.recordTransfer(destination, sent.size(), totalSize(sent), completedAt - begun);
+                        }
+                        finally {
+                            inFlight.release();
+                        }
+                        return null;
+                    });
+                    if (inFlightLimit > 1) {
+                        sendExecutor.execute(completion);
+                    }
+                    else {
+                        completion.run();
+                    }
+
+                    transactions.add(sent);
+                    completions.add(completion);
+                    unsent = index;
+                }
+            }
+            catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                sendFailure = e;
+            }
+
+            for (int i = 0; i < completions.size(); i++) {
+                try {
+                    completions.get(i).get();
+                    recordSent(session, transactions.get(i).size(), totalSize(transactions.get(i)));
+                    for (final FlowFile flowFile : transactions.get(i)) {
+                        transferToSuccess(session, flowFile);
+                    }
+                }
+                catch (Exception e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    getLogger().error("Site-to-site transfer to {} failed for FlowFiles {}", new Object[]{key, transactions.get(i)}, e);
+                    for (final FlowFile flowFile : transactions.get(i)) {
+                        transferToFailure(session, flowFile, Collections.singletonList(key), Collections.<SiteToSiteClientCache.Key>emptyList(),
+                    isRetryingFanOut(flowFile));
+                    }
+                    failed = true;
+                }
+            }
+            if (failed || sendFailure != null) {
+                lease.invalidate();
+            }
+        }
+        catch (Exception e) {
+            sendFailure = e;
+        }
+
+        if (sendFailure != null) {
+            final List<FlowFile> unsentFlowFiles = flowFiles.subList(unsent, flowFiles.size());
+            getLogger().error("Site-to-site transfer to {} failed for FlowFiles {}", new Object[]{key, unsentFlowFiles}, sendFailure);
+            for (final FlowFile flowFile : unsentFlowFiles) {
+                transferToFailure(session, flowFile, Collections.singletonList(key), Collections.<SiteToSiteClientCache.Key>emptyList(),
+                    isRetryingFanOut(flowFile));
+            }
+        }
+
+        if (autoCompression && !failed && sendFailure == null) {
+            final long bytesSaved = compressionAdvisor.record(destination, clientKey.isUseCompression(), totalSize(flowFiles), System.nanoTime() - sendStart);
+            recordCompression(session, clientKey, bytesSaved);
+        }
+
+        recordOutcome(session, destination, !failed && sendFailure == null);
+    }
+
+    /**
+     * Sends the FlowFile at the given index, or a packet of FlowFiles
+     * starting there and ending before end, and returns the index of the
+     * next FlowFile to send.
+     */
+    private int sendNext(final ProcessSession session, final Transaction transaction, final List<FlowFile> flowFiles,
+            final int index, final int end) throws IOException {
+        final FlowFile first = flowFiles.get(index);
+        if (!packing || first.getSize() > maxPacketSize) {
+            session.read(first, in -> transaction.send(new StandardDataPacket(first.getAttributes(), in, first.getSize())));
+            return index + 1;
+        }
+
+        final FlowFilePackager packager = new FlowFilePackagerV3();
+        final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        final long start = System.nanoTime();
+        long contentSize = 0;
+        int next = index;
+        do {
+            final FlowFile flowFile = flowFiles.get(next);
+            if (next > index && (flowFile.getSize() > maxPacketSize - contentSize || System.nanoTime() - start >= maxPackingDuration)) {
+                break;
+            }
+            session.read(flowFile, in -> packager.packageFlowFile(in, packet, flowFile.getAttributes(), flowFile.getSize()));
+            contentSize += flowFile.getSize();
+            next++;
+        } while (next < end && next - index < maxPacketCount);
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put(CoreAttributes.MIME_TYPE.key(), FLOWFILE_V3_MIME_TYPE);
+        attributes.put(PACKED_COUNT, String.valueOf(next - index));
+        transaction.send(packet.toByteArray(), attributes);
+        return next;
+    }
+
+    private void fanOut(final ProcessSession session, final FlowFile flowFile, final List<SiteToSiteClientCache.Key> keys) {
+        final double ratio = autoCompression ? sampleCompression(session, flowFile) : Double.NaN;
+        final List<SiteToSiteClientCache.Key> allowed = new ArrayList<SiteToSiteClientCache.Key>(keys.size());
+        final List<SiteToSiteClientCache.Key> rejected = new ArrayList<SiteToSiteClientCache.Key>();
+        for (final SiteToSiteClientCache.Key key : keys) {
+            if (circuitBreakers.allowRequest(key.getDestination())) {
+                allowed.add(autoCompression ? key.withCompression(compressionAdvisor.shouldCompress(key.getDestination(), ratio)) : key);
+            }
+            else {
+                rejected.add(key);
+            }
+        }
+        if (!rejected.isEmpty()) {
+            session.adjustCounter("Circuit Breaker Rejections", rejected.size(), false);
+        }
+
+        final List<SiteToSiteClientCache.Key> failed;
+        if (allowed.isEmpty()) {
+            failed = new ArrayList<SiteToSiteClientCache.Key>();
+        }
+        else if (reserveContent(flowFile.getSize())) {
+            try {
+                failed = fanOutCached(session, flowFile, allowed);
+            }
+            finally {
+                cachedContentBytes.addAndGet(-flowFile.getSize());
+            }
+        }
+        else {
+            failed = fanOutStreamed(session, flowFile, allowed);
+        }
+
+        for (final SiteToSiteClientCache.Key key : allowed) {
+            if (!failed.contains(key)) {
+                recordSent(session, 1, flowFile.getSize());
+                if (autoCompression) {
+                    recordCompression(session, key, 0L);
+                }
+            }
+            recordOutcome(session, key.getDestination(), !failed.contains(key));
+        }
+
+        if (failed.isEmpty() && rejected.isEmpty()) {
+            transferToSuccess(session, flowFile);
+        }
+        else {
+            failed.addAll(rejected);
+            transferToFailure(session, flowFile, failed, rejected, true);
+        }
+    }
+
+    private void recordOutcome(final ProcessSession session, final Destination destination, final boolean success) {
+        if (!success) {
+            metrics.recordFailure(destination);
+            session.adjustCounter("Failed Transfers", 1, false);
+        }
+
+        final CircuitBreakers.Transition transition = success
+            ? circuitBreakers.recordSuccess(destination)
+            : circuitBreakers.recordFailure(destination);
+
+        if (transition == CircuitBreakers.Transition.OPENED) {
+            getLogger().warn("Opened the circuit for {} after repeated failures", new Object[]{destination});
+            session.adjustCounter("Circuits Opened", 1, false);
+        }
+        else if (transition == CircuitBreakers.Transition.CLOSED) {
+            getLogger().info("Closed the circuit for {}", new Object[]{destination});
+        }
+        if (transition != CircuitBreakers.Transition.NONE) {
+            metrics.setOpenCircuitCount(circuitBreakers.getOpenCount());
+        }
+    }
 
-        final SSLContext sslContext = (sslContextService == null) ? null : sslContextService.createSSLContext(SSLContextService.ClientAuth.valueOf(clientAuth));
+    /**
+     * Reserves room within 'Content Cache Size' to hold content of the given
+     * size in memory, returning false if it should be streamed instead.
+     */
+    private boolean reserveContent(final long size) {
+        if (size > maxCacheableContentSize) {
+            return false;
+        }
+        while (true) {
+            final long cached = cachedContentBytes.get();
+            if (cached + size > contentCacheSize) {
+                return false;
+            }
+            if (cachedContentBytes.compareAndSet(cached, cached + size)) {
+                return true;
+            }
+        }
+    }
 
+    private List<SiteToSiteClientCache.Key> fanOutCached(final ProcessSession session, final FlowFile flowFile, final List<SiteToSiteClientCache.Key> keys) {
+        final Map<String, String> attributes = flowFile.getAttributes();
+        final byte[] content = new byte[(int) flowFile.getSize()];
         try {
-          final SiteToSiteClient client = getClient(remoteUrl, remoteInputPort, useCompression, sslContext);
+            session.read(flowFile, in -> StreamUtils.fillBuffer(in, content));
+        }
+        catch (Exception e) {
+            getLogger().error("Could not read the content of FlowFile {}", new Object[]{flowFile}, e);
+            return new ArrayList<SiteToSiteClientCache.Key>(keys);
+        }
 
-          try {
-            final Transaction transaction = client.createTransaction(TransferDirection.SEND);
+        final List<Future<?>> futures = new ArrayList<Future<?>>(keys.size());
+        for (final SiteToSiteClientCache.Key key : keys) {
+            try {
+                sendPermits.acquire();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            futures.add(sendExecutor.submit(() -> {
+                try {
+                    sendOne(key, new StandardDataPacket(attributes, new ByteArrayInputStream(content), content.length));
+                }
+                finally {
+                    sendPermits.release();
+                }
+                return null;
+            }));
+        }
+
+        final List<SiteToSiteClientCache.Key> failed = awaitSends(flowFile, keys.subList(0, futures.size()), futures);
+        failed.addAll(keys.subList(futures.size(), keys.size()));
+        return failed;
+    }
 
-            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            session.exportTo(flowFile, bytes);
-            final byte[] data = bytes.toByteArray();
-            final Map<String, String> attributes = flowFile.getAttributes();
+    private List<SiteToSiteClientCache.Key> fanOutStreamed(final ProcessSession session, final FlowFile flowFile, final List<SiteToSiteClientCache.Key> keys) {
+        final List<SiteToSiteClientCache.Key> failed = new ArrayList<SiteToSiteClientCache.Key>();
 
-            transaction.send(data, attributes);
-            transaction.confirm();
-            transaction.complete();
-          }
-          finally {
-            try { client.close(); } catch (Exception e) { }
-          }
+        // Every destination in a wave needs its own thread for the whole
+        // read, so permits for the wave are taken all at once
+        for (int start = 0; start < keys.size(); start += maxConcurrentSends) {
+            final List<SiteToSiteClientCache.Key> wave = keys.subList(start, Math.min(keys.size(), start + maxConcurrentSends));
+            try {
+                sendPermits.acquire(wave.size());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.addAll(keys.subList(start, keys.size()));
+                break;
+            }
+            try {
+                failed.addAll(fanOutWave(session, flowFile, wave));
+            }
+            finally {
+                sendPermits.release(wave.size());
+            }
+        }
+        return failed;
+    }
+
+    private List<SiteToSiteClientCache.Key> fanOutWave(final ProcessSession session, final FlowFile flowFile, final List<SiteToSiteClientCache.Key> keys) {
+        final Map<String, String> attributes = flowFile.getAttributes();
+        final long size = flowFile.getSize();
+        final ContentBroadcast broadcast = new ContentBroadcast(keys.size(), BROADCAST_CHUNK_SIZE, BROADCAST_CHUNKS_PER_DESTINATION,
+            communicationsTimeout, TimeUnit.MILLISECONDS);
+
+        final List<Future<?>> futures = new ArrayList<Future<?>>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final SiteToSiteClientCache.Key key = keys.get(i);
+            final InputStream in = broadcast.getSubscriber(i);
+            futures.add(sendExecutor.submit(() -> {
+                try {
+                    sendOne(key, new StandardDataPacket(attributes, in, size));
+                }
+                finally {
+                    in.close();
+                }
+                return null;
+            }));
+        }
+
+        try {
+            session.read(flowFile, in -> broadcast.publish(in));
         }
         catch (Exception e) {
-          getLogger().error("Site-to-site transfer to {} at {} failed for FlowFile {}", new Object[]{remoteInputPort, remoteUrl, flowFile}, e);
-          flowFile = session.penalize(flowFile);
-          session.transfer(flowFile, REL_FAILURE);
-          return;
+            getLogger().error("Could not read the content of FlowFile {}", new Object[]{flowFile}, e);
+            // The read can fail before the callback runs, in which case no
+            // subscriber would otherwise ever see the end of its stream
+            broadcast.abort();
         }
 
+        return awaitSends(flowFile, keys, futures);
+    }
+
+    private List<SiteToSiteClientCache.Key> awaitSends(final FlowFile flowFile, final List<SiteToSiteClientCache.Key> keys, final List<Future<?>> futures) {
+        final List<SiteToSiteClientCache.Key> failed = new ArrayList<SiteToSiteClientCache.Key>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.add(keys.get(i));
+            }
+            catch (Exception e) {
+                getLogger().error("Site-to-site transfer to {} failed for FlowFile {}", new Object[]{keys.get(i), flowFile}, e);
+                failed.add(keys.get(i));
+            }
+        }
+        return failed;
+    }
+
+    private void sendOne(final SiteToSiteClientCache.Key key, final DataPacket dataPacket) throws IOException {
+        final Destination destination = key.getDestination();
+        try (final SiteToSiteClientCache.Lease lease = clientCache.acquire(key)) {
+            recordClient(destination, lease);
+            try {
+                final long begun = System.nanoTime();
+                final Transaction transaction = createTransaction(lease, key);
+                transaction.send(dataPacket);
+                final long sentAt = System.nanoTime();
+                metrics.recordLatency(destination, DestinationMetrics.Phase.SEND, sentAt - begun);
+                transaction.confirm();
+                final long confirmedAt = System.nanoTime();
+                metrics.recordLatency(destination, DestinationMetrics.Phase.CONFIRM, confirmedAt - sentAt);
+                transaction.complete();
+                final long completedAt = System.nanoTime();
+                metrics.recordLatency(destination, DestinationMetrics.Phase.COMPLETE, completedAt - confirmedAt);
+                metrics.recordTransfer(destination, 1, dataPacket.getSize(), completedAt - begun);
+                if (autoCompression) {
+                    adjustCounterLater("Compression Bytes Saved", compressionAdvisor.record(
+                        destination, key.isUseCompression(), dataPacket.getSize(), completedAt - begun));
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                lease.invalidate();
+                throw e;
+            }
+        }
+    }
+
+    private static Transaction createTransaction(final SiteToSiteClientCache.Lease lease, final SiteToSiteClientCache.Key key) throws IOException {
+        // Real clients return null rather than throwing when the remote
+        // instance has no peers to send to
+        final Transaction transaction = lease.getClient().createTransaction(TransferDirection.SEND);
+        if (transaction == null) {
+            throw new IOException("No peers are available to receive data at " + key);
+        }
+        return transaction;
+    }
+
+    private void transferToSuccess(final ProcessSession session, FlowFile flowFile) {
+        if (isRetryingFanOut(flowFile)) {
+            flowFile = session.removeAllAttributes(flowFile, new HashSet<String>(Arrays.asList(FAILED_DESTINATIONS, FAILED_DESTINATIONS_PROCESSOR)));
+        }
+        if (flowFile.getAttribute(OPEN_CIRCUITS) != null) {
+            flowFile = session.removeAttribute(flowFile, OPEN_CIRCUITS);
+        }
         session.transfer(flowFile, REL_SUCCESS);
     }
+
+    private void transferToFailure(final ProcessSession session, FlowFile flowFile,
+            final List<SiteToSiteClientCache.Key> failed, final List<SiteToSiteClientCache.Key> openCircuits, final boolean fanOut) {
+        // Only a fan-out remembers where it failed; anything else is routed
+        // by its attributes again when it is retried
+        if (fanOut) {
+            flowFile = session.putAttribute(flowFile, FAILED_DESTINATIONS, joinUrls(failed));
+            flowFile = session.putAttribute(flowFile, FAILED_DESTINATIONS_PROCESSOR, getIdentifier());
+        }
+        if (!openCircuits.isEmpty()) {
+            flowFile = session.putAttribute(flowFile, OPEN_CIRCUITS, joinUrls(openCircuits));
+        }
+        else if (flowFile.getAttribute(OPEN_CIRCUITS) != null) {
+            flowFile = session.removeAttribute(flowFile, OPEN_CIRCUITS);
+        }
+        flowFile = session.penalize(flowFile);
+        session.transfer(flowFile, REL_FAILURE);
+    }
+
+    private static String joinUrls(final List<SiteToSiteClientCache.Key> keys) {
+        final StringBuilder urls = new StringBuilder();
+        for (final SiteToSiteClientCache.Key key : keys) {
+            if (urls.length() > 0) {
+                urls.append(',');
+            }
+            urls.append(key.getDestination().getUrl());
+        }
+        return urls.toString();
+    }
+
+    private static long totalSize(final List<FlowFile> flowFiles) {
+        long size = 0;
+        for (final FlowFile flowFile : flowFiles) {
+            size += flowFile.getSize();
+        }
+        return size;
+    }
+
+    private static boolean isEmpty(final String value) {
+        return value == null || value.isEmpty();
+    }
 }
@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.remote.client.SiteToSiteClient;
+import org.apache.nifi.remote.protocol.SiteToSiteTransportProtocol;
+
+/**
+ * A bounded, thread-safe cache of open {@link SiteToSiteClient}s so that
+ * connections, peer lists and TLS sessions can be reused across FlowFiles.
+ *
+ * Clients are handed out as {@link Lease}s. A client that is evicted, either
+ * because it has been idle for too long or because the cache is full and it
+ * is the least recently used, is closed as soon as its last lease is
+ * released.
+ */
+public class SiteToSiteClientCache implements Closeable {
+
+    public interface ClientFactory {
+        SiteToSiteClient create(Key key) throws IOException;
+    }
+
+    public static final class Key {
+
+        private final Destination destination;
+
+        private final boolean useCompression;
+
+        private final String sslContextServiceId;
+
+        private final String clientAuth;
+
+        private final SiteToSiteTransportProtocol transportProtocol;
+
+        public Key(final Destination destination, final boolean useCompression, final String sslContextServiceId, final String clientAuth,
+                final SiteToSiteTransportProtocol transportProtocol) {
+            this.destination = destination;
+            this.useCompression = useCompression;
+            this.sslContextServiceId = sslContextServiceId;
+            this.clientAuth = clientAuth;
+            this.transportProtocol = transportProtocol;
+        }
+
+        public Destination getDestination() {
+            return destination;
+        }
+
+        public boolean isUseCompression() {
+            return useCompression;
+        }
+
+        public String getSslContextServiceId() {
+            return sslContextServiceId;
+        }
+
+        public String getClientAuth() {
+            return clientAuth;
+        }
+
+        public SiteToSiteTransportProtocol getTransportProtocol() {
+            return transportProtocol;
+        }
+
+        public Key withCompression(final boolean useCompression) {
+            return (useCompression == this.useCompression) ? this : new Key(destination, useCompression, sslContextServiceId, clientAuth, transportProtocol);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return destination.equals(other.destination)
+                && useCompression == other.useCompression
+                && Objects.equals(sslContextServiceId, other.sslContextServiceId)
+                && Objects.equals(clientAuth, other.clientAuth)
+                && transportProtocol == other.transportProtocol;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(destination, useCompression, sslContextServiceId, clientAuth, transportProtocol);
+        }
+
+        @Override
+        public String toString() {
+            return destination.toString();
+        }
+    }
+
+    public final class Lease implements Closeable {
+
+        private final Entry entry;
+
+        private final boolean newClient;
+
+        private boolean released;
+
+        private Lease(final Entry entry, final boolean newClient) {
+            this.entry = entry;
+            this.newClient = newClient;
+        }
+
+        public SiteToSiteClient getClient() {
+            return entry.client;
+        }
+
+        /**
+         * Returns whether the client was built for this lease rather than
+         * taken from the cache.
+         */
+        public boolean isNewClient() {
+            return newClient;
+        }
+
+        /**
+         * Removes the leased client from the cache so that the next lease for
+         * the same key builds a new one, e.g. after a failed transaction.
+         */
+        public void invalidate() {
+            synchronized (SiteToSiteClientCache.this) {
+                if (entries.get(entry.key) == entry) {
+                    entries.remove(entry.key);
+                }
+                entry.retired = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            boolean closeClient = false;
+            synchronized (SiteToSiteClientCache.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                entry.leases--;
+                entry.lastUsed = System.nanoTime();
+                closeClient = entry.retired && entry.leases == 0;
+            }
+            if (closeClient) {
+                closeQuietly(entry.client);
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final Key key;
+
+        private final SiteToSiteClient client;
+
+        private int leases;
+
+        private long lastUsed;
+
+        private boolean retired;
+
+        private Entry(final Key key, final SiteToSiteClient client) {
+            this.key = key;
+            this.client = client;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    private final int maxEntries;
+
+    private final long idleExpirationNanos;
+
+    private final ClientFactory factory;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    private boolean closed;
+
+    public SiteToSiteClientCache(final int maxEntries, final long idleExpiration, final TimeUnit unit, final ClientFactory factory) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.idleExpirationNanos = unit.toNanos(idleExpiration);
+        this.factory = factory;
+    }
+
+    public Lease acquire(final Key key) throws IOException {
+        final List<SiteToSiteClient> toClose = new ArrayList<SiteToSiteClient>();
+        final Lease lease;
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Site-to-site client cache is closed");
+                }
+
+                expireIdle(System.nanoTime(), toClose);
+
+                Entry entry = entries.get(key);
+                final boolean newClient = entry == null;
+                if (newClient) {
+                    entry = new Entry(key, factory.create(key));
+                    entries.put(key, entry);
+                    evictEldest(toClose);
+                }
+                entry.leases++;
+                lease = new Lease(entry, newClient);
+            }
+        }
+        finally {
+            for (final SiteToSiteClient client : toClose) {
+                closeQuietly(client);
+            }
+        }
+        return lease;
+    }
+
+    /**
+     * Closes the clients that have been idle for longer than the idle
+     * expiration. This also happens on every {@link #acquire(Key)}, but a
+     * cache that is no longer being used has to be expired explicitly, e.g.
+     * on a timer.
+     */
+    public void expireIdle() {
+        final List<SiteToSiteClient> toClose = new ArrayList<SiteToSiteClient>();
+        synchronized (this) {
+            expireIdle(System.nanoTime(), toClose);
+        }
+        for (final SiteToSiteClient client : toClose) {
+            closeQuietly(client);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() {
+        final List<SiteToSiteClient> toClose = new ArrayList<SiteToSiteClient>();
+        synchronized (this) {
+            closed = true;
+            for (final Entry entry : entries.values()) {
+                entry.retired = true;
+                if (entry.leases == 0) {
+                    toClose.add(entry.client);
+                }
+            }
+            entries.clear();
+        }
+        for (final SiteToSiteClient client : toClose) {
+            closeQuietly(client);
+        }
+    }
+
+    private void expireIdle(final long now, final List<SiteToSiteClient> toClose) {
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.leases == 0 && now - entry.lastUsed >= idleExpirationNanos) {
+                it.remove();
+                entry.retired = true;
+                toClose.add(entry.client);
+            }
+        }
+    }
+
+    private void evictEldest(final List<SiteToSiteClient> toClose) {
+        final Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            final Entry eldest = it.next();
+            it.remove();
+            eldest.retired = true;
+            if (eldest.leases == 0) {
+                toClose.add(eldest.client);
+            }
+        }
+    }
+
+    private static void closeQuietly(final SiteToSiteClient client) {
+        try { client.close(); } catch (Exception e) { }
+    }
+}
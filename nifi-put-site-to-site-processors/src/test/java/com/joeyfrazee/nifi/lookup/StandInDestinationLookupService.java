@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.lookup;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.components.PropertyDescriptor;
+
+/**
+ * A caching lookup service over an in-memory map, standing in for a database
+ * or other slow source in tests.
+ */
+public class StandInDestinationLookupService extends AbstractCachingDestinationLookupService {
+
+    private final Map<String, List<String>> source = new ConcurrentHashMap<String, List<String>>();
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return Arrays.asList(CACHE_SIZE, CACHE_EXPIRATION, REFRESH_AHEAD_PERIOD);
+    }
+
+    public void put(final String key, final String... destinations) {
+        source.put(key, Arrays.asList(destinations));
+    }
+
+    public int getLoadCount() {
+        return loads.get();
+    }
+
+    @Override
+    protected List<String> load(final String key) throws IOException {
+        loads.incrementAndGet();
+        return source.get(key);
+    }
+}
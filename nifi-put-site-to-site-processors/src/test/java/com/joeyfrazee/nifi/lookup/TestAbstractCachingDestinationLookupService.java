@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.lookup;
+
+import java.io.*;
+import java.util.*;
+
+import com.joeyfrazee.nifi.processors.DuplicateByAttribute;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestAbstractCachingDestinationLookupService {
+
+    private TestRunner runner;
+
+    private StandInDestinationLookupService service;
+
+    @Before
+    public void init() {
+        runner = TestRunners.newTestRunner(DuplicateByAttribute.class);
+        service = new StandInDestinationLookupService();
+    }
+
+    private void enable(final String cacheSize, final String expiration, final String refreshAhead) throws InitializationException {
+        runner.addControllerService("lookup", service);
+        runner.setProperty(service, AbstractCachingDestinationLookupService.CACHE_SIZE, cacheSize);
+        runner.setProperty(service, AbstractCachingDestinationLookupService.CACHE_EXPIRATION, expiration);
+        runner.setProperty(service, AbstractCachingDestinationLookupService.REFRESH_AHEAD_PERIOD, refreshAhead);
+        runner.enableControllerService(service);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        service.put("orders", "east", "west");
+        enable("10", "5 mins", "0 secs");
+
+        final LookupResult first = service.lookup("orders");
+        assertFalse(first.isCached());
+        assertEquals(Arrays.asList("east", "west"), first.getDestinations());
+
+        final LookupResult second = service.lookup("orders");
+        assertTrue(second.isCached());
+        assertEquals(Arrays.asList("east", "west"), second.getDestinations());
+
+        assertNull(service.lookup("unknown").getDestinations());
+        assertTrue(service.lookup("unknown").isCached());
+
+        assertEquals(2, service.getHitCount());
+        assertEquals(2, service.getMissCount());
+        assertEquals(2, service.getLoadCount());
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        service.put("orders", "east");
+        enable("10", "100 millis", "0 secs");
+
+        service.lookup("orders");
+        Thread.sleep(200L);
+        service.put("orders", "west");
+
+        final LookupResult result = service.lookup("orders");
+        assertFalse(result.isCached());
+        assertEquals(Collections.singletonList("west"), result.getDestinations());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        service.put("a", "east");
+        service.put("b", "west");
+        service.put("c", "south");
+        enable("2", "5 mins", "0 secs");
+
+        service.lookup("a");
+        service.lookup("b");
+        service.lookup("a");
+        service.lookup("c");
+
+        assertTrue(service.lookup("a").isCached());
+        assertFalse(service.lookup("b").isCached());
+    }
+
+    @Test
+    public void testEntryIsRefreshedAheadOfExpiry() throws Exception {
+        service.put("orders", "east");
+        enable("10", "10 secs", "9900 millis");
+
+        service.lookup("orders");
+        Thread.sleep(200L);
+        service.put("orders", "west");
+
+        final LookupResult stale = service.lookup("orders");
+        assertTrue(stale.isCached());
+        assertEquals(Collections.singletonList("east"), stale.getDestinations());
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (service.getRefreshCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, service.getRefreshCount());
+
+        final LookupResult refreshed = service.lookup("orders");
+        assertTrue(refreshed.isCached());
+        assertEquals(Collections.singletonList("west"), refreshed.getDestinations());
+        assertEquals(1, service.getMissCount());
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * An in-memory sink for the FlowFiles that {@link InMemorySiteToSiteClient}s
+ * send, so tests can check delivery, batching and failure routing without a
+ * remote NiFi instance. Latency, peer discovery, bandwidth limits and
+ * failures can be injected.
+ *
+ * It replaces the site-to-site client above the wire: neither the RAW nor the
+ * HTTP protocol is spoken, so transport, compression, timeouts and idle
+ * expiration only show up in the client's configuration, and content is never
+ * encrypted. Results measured against it are the processor's own overhead,
+ * not the cost of the wire.
+ */
+public class InMemoryReceiver implements Closeable {
+
+    public static final String KEYSTORE = "localhost-ks.jks";
+
+    public static final String TRUSTSTORE = "localhost-ts.jks";
+
+    public static final String STORE_PASSWORD = "passwordpassword";
+
+    public static class Received {
+
+        private final Map<String, String> attributes;
+
+        private final byte[] content;
+
+        private final long size;
+
+        private final long checksum;
+
+        Received(final Map<String, String> attributes, final byte[] content, final long size, final long checksum) {
+            this.attributes = attributes;
+            this.content = content;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        public Map<String, String> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * Returns the received content, or null if the receiver was told not
+         * to retain content.
+         */
+        public byte[] getContent() {
+            return content;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+
+    private final List<Received> received = new CopyOnWriteArrayList<Received>();
+
+    private final AtomicInteger transactions = new AtomicInteger();
+
+    private final AtomicInteger handshakes = new AtomicInteger();
+
+    private final AtomicInteger peerDiscoveries = new AtomicInteger();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final Set<Integer> failingTransactions = Collections.synchronizedSet(new HashSet<Integer>());
+
+    private volatile boolean retainContent = true;
+
+    private volatile boolean failOnConfirm;
+
+    private volatile double failureRate;
+
+    private volatile long latencyMillis;
+
+    private volatile long bytesPerSecond;
+
+    private volatile long peerDiscoveryMillis;
+
+    private volatile SSLServerSocket serverSocket;
+
+    public List<Received> getReceived() {
+        return received;
+    }
+
+    public int getTransactionCount() {
+        return transactions.get();
+    }
+
+    public int getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    public int getPeerDiscoveryCount() {
+        return peerDiscoveries.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public void setRetainContent(final boolean retainContent) {
+        this.retainContent = retainContent;
+    }
+
+    public boolean isRetainContent() {
+        return retainContent;
+    }
+
+    /**
+     * Makes every confirm fail until set back to false.
+     */
+    public void setFailOnConfirm(final boolean failOnConfirm) {
+        this.failOnConfirm = failOnConfirm;
+    }
+
+    /**
+     * Makes the confirm of the n-th transaction fail, counting from 1.
+     */
+    public void failTransaction(final int n) {
+        failingTransactions.add(n);
+    }
+
+    /**
+     * Makes each confirm fail with the given probability.
+     */
+    public void setFailureRate(final double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Adds a delay to every round trip: creating a transaction and
+     * confirming it.
+     */
+    public void setLatencyMillis(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Limits how fast content is read from each sender, or 0 for no limit.
+     */
+    public void setBytesPerSecond(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Adds a delay to the first connection of every client that has no
+     * persisted peers, standing in for asking the remote cluster for them.
+     */
+    public void setPeerDiscoveryMillis(final long peerDiscoveryMillis) {
+        this.peerDiscoveryMillis = peerDiscoveryMillis;
+    }
+
+    /**
+     * Requires each client to have an SSLContext that completes a TLS
+     * handshake with the test keystore and truststore, on a loopback socket
+     * of its own, before its first transaction. This checks the SSLContext the
+     * processor builds; the FlowFiles themselves are still handed over in
+     * memory.
+     */
+    public void setRequireSslContext(final boolean requireSslContext) throws IOException {
+        if (!requireSslContext) {
+            close();
+            return;
+        }
+        if (serverSocket != null) {
+            return;
+        }
+
+        final SSLContext sslContext;
+        try {
+            sslContext = createSslContext();
+        }
+        catch (Exception e) {
+            throw new IOException("Could not load the test keystore", e);
+        }
+
+        final SSLServerSocket socket = (SSLServerSocket) sslContext.getServerSocketFactory()
+            .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        socket.setNeedClientAuth(true);
+        serverSocket = socket;
+
+        final Thread acceptor = new Thread(() -> {
+            while (!socket.isClosed()) {
+                try (final SSLSocket accepted = (SSLSocket) socket.accept()) {
+                    accepted.startHandshake();
+                }
+                catch (SocketException e) {
+                    return;
+                }
+                catch (IOException e) {
+                    // a failed handshake is reported on the client side
+                }
+            }
+        }, "InMemoryReceiver SSLContext check");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public boolean isRequireSslContext() {
+        return serverSocket != null;
+    }
+
+    public static SSLContext createSslContext() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (final InputStream in = InMemoryReceiver.class.getClassLoader().getResourceAsStream(KEYSTORE)) {
+            keyStore.load(in, STORE_PASSWORD.toCharArray());
+        }
+        final KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (final InputStream in = InMemoryReceiver.class.getClassLoader().getResourceAsStream(TRUSTSTORE)) {
+            trustStore.load(in, STORE_PASSWORD.toCharArray());
+        }
+
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, STORE_PASSWORD.toCharArray());
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * Copies the test keystore or truststore to a temporary file, for
+     * controller services that need a path.
+     */
+    public static File copyStore(final String name) throws IOException {
+        final File file = File.createTempFile(name, ".jks");
+        file.deleteOnExit();
+        try (final InputStream in = InMemoryReceiver.class.getClassLoader().getResourceAsStream(name);
+             final OutputStream out = new FileOutputStream(file)) {
+            final byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        }
+        return file;
+    }
+
+    void handshake(final SSLContext clientContext) throws IOException {
+        final SSLServerSocket socket = serverSocket;
+        if (socket == null) {
+            return;
+        }
+        if (clientContext == null) {
+            throw new IOException("Remote instance requires a secure connection");
+        }
+        try (final SSLSocket client = (SSLSocket) clientContext.getSocketFactory()
+                .createSocket(InetAddress.getLoopbackAddress(), socket.getLocalPort())) {
+            client.startHandshake();
+        }
+        handshakes.incrementAndGet();
+    }
+
+    /**
+     * Discovers the peers unless the client persisted them earlier, and
+     * persists them if the client has a peer persistence file.
+     */
+    void discoverPeers(final File peerPersistenceFile) throws IOException {
+        if (peerPersistenceFile != null && peerPersistenceFile.exists()) {
+            return;
+        }
+        delay(peerDiscoveryMillis);
+        peerDiscoveries.incrementAndGet();
+        if (peerPersistenceFile != null) {
+            try (final Writer writer = new OutputStreamWriter(new FileOutputStream(peerPersistenceFile), "UTF-8")) {
+                writer.write("localhost:0:" + isRequireSslContext() + "\n");
+            }
+        }
+    }
+
+    int beginTransaction() throws IOException {
+        delay(latencyMillis);
+        return transactions.incrementAndGet();
+    }
+
+    InputStream throttle(final InputStream in) {
+        final long limit = bytesPerSecond;
+        if (limit <= 0) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            private final long start = System.nanoTime();
+            private long read;
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    pace(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    pace(n);
+                }
+                return n;
+            }
+
+            private void pace(final int n) throws IOException {
+                read += n;
+                final long due = start + read * 1000000000L / limit;
+                final long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    delay(wait / 1000000L);
+                }
+            }
+        };
+    }
+
+    void confirm(final int transaction) throws IOException {
+        delay(latencyMillis);
+        if (failOnConfirm || failingTransactions.contains(transaction)
+                || (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate)) {
+            throw new IOException("In-memory receiver rejected transaction " + transaction);
+        }
+    }
+
+    void deliver(final List<Received> packets) {
+        for (final Received packet : packets) {
+            bytesReceived.addAndGet(packet.getSize());
+        }
+        received.addAll(packets);
+    }
+
+    private static void delay(final long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        final SSLServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
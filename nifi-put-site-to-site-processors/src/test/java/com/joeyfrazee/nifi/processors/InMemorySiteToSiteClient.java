@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.nifi.remote.Communicant;
+import org.apache.nifi.remote.Transaction;
+import org.apache.nifi.remote.TransactionCompletion;
+import org.apache.nifi.remote.TransferDirection;
+import org.apache.nifi.remote.client.SiteToSiteClient;
+import org.apache.nifi.remote.client.SiteToSiteClientConfig;
+import org.apache.nifi.remote.protocol.DataPacket;
+import org.apache.nifi.remote.util.StandardDataPacket;
+
+/**
+ * A site-to-site client that hands FlowFiles to an {@link InMemoryReceiver}
+ * instead of sending them over RAW or HTTP site-to-site to a remote NiFi
+ * instance. Its configuration is kept as given, so tests can check what the
+ * processor asked for, but nothing in it other than the peer persistence
+ * file and the SSLContext changes how it behaves.
+ */
+public class InMemorySiteToSiteClient implements SiteToSiteClient {
+
+    private final SiteToSiteClientConfig config;
+
+    private final InMemoryReceiver receiver;
+
+    private volatile boolean connected;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a client with a receiver of its own.
+     */
+    public InMemorySiteToSiteClient(final SiteToSiteClientConfig config) {
+        this(config, new InMemoryReceiver());
+    }
+
+    public InMemorySiteToSiteClient(final SiteToSiteClientConfig config, final InMemoryReceiver receiver) {
+        this.config = config;
+        this.receiver = receiver;
+    }
+
+    public InMemoryReceiver getReceiver() {
+        return receiver;
+    }
+
+    public List<InMemoryReceiver.Received> getReceived() {
+        return receiver.getReceived();
+    }
+
+    public int getTransactionCount() {
+        return receiver.getTransactionCount();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void setRetainContent(final boolean retainContent) {
+        receiver.setRetainContent(retainContent);
+    }
+
+    public void failTransaction(final int n) {
+        receiver.failTransaction(n);
+    }
+
+    public void setFailOnConfirm(final boolean failOnConfirm) {
+        receiver.setFailOnConfirm(failOnConfirm);
+    }
+
+    @Override
+    public Transaction createTransaction(final TransferDirection direction) throws IOException {
+        if (closed) {
+            throw new IOException("Client is closed");
+        }
+        synchronized (this) {
+            if (!connected) {
+                receiver.discoverPeers(config.getPeerPersistenceFile());
+                receiver.handshake(config.getSslContext());
+                connected = true;
+            }
+        }
+        return new InMemoryTransaction(receiver.beginTransaction());
+    }
+
+    @Override
+    public boolean isSecure() throws IOException {
+        return config.getSslContext() != null;
+    }
+
+    @Override
+    public SiteToSiteClientConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+    }
+
+    private class InMemoryTransaction implements Transaction {
+
+        private final int ordinal;
+
+        private final List<InMemoryReceiver.Received> pending = new ArrayList<InMemoryReceiver.Received>();
+
+        private final long started = System.nanoTime();
+
+        private long bytes;
+
+        private TransactionState state = TransactionState.TRANSACTION_STARTED;
+
+        private InMemoryTransaction(final int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public void send(final DataPacket dataPacket) throws IOException {
+            final ByteArrayOutputStream out = receiver.isRetainContent() ? new ByteArrayOutputStream() : null;
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[8192];
+            final InputStream in = receiver.throttle(dataPacket.getData());
+            long size = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, len);
+                if (out != null) {
+                    out.write(buffer, 0, len);
+                }
+                size += len;
+            }
+            if (size != dataPacket.getSize()) {
+                throw new IOException("Expected " + dataPacket.getSize() + " bytes but received " + size);
+            }
+            bytes += size;
+            final byte[] content = (out == null) ? null : out.toByteArray();
+            pending.add(new InMemoryReceiver.Received(new HashMap<String, String>(dataPacket.getAttributes()), content, size, crc.getValue()));
+            state = TransactionState.DATA_EXCHANGED;
+        }
+
+        @Override
+        public void send(final byte[] content, final Map<String, String> attributes) throws IOException {
+            send(new StandardDataPacket(attributes, new ByteArrayInputStream(content), content.length));
+        }
+
+        @Override
+        public DataPacket receive() throws IOException {
+            return null;
+        }
+
+        @Override
+        public void confirm() throws IOException {
+            try {
+                receiver.confirm(ordinal);
+            }
+            catch (IOException e) {
+                state = TransactionState.TRANSACTION_ERROR;
+                throw e;
+            }
+            state = TransactionState.TRANSACTION_CONFIRMED;
+        }
+
+        @Override
+        public TransactionCompletion complete() throws IOException {
+            receiver.deliver(pending);
+            state = TransactionState.TRANSACTION_COMPLETED;
+            final int packets = pending.size();
+            final long transferred = bytes;
+            final long duration = System.nanoTime() - started;
+            return new TransactionCompletion() {
+                @Override
+                public boolean isBackoff() {
+                    return false;
+                }
+
+                @Override
+                public int getDataPacketsTransferred() {
+                    return packets;
+                }
+
+                @Override
+                public long getBytesTransferred() {
+                    return transferred;
+                }
+
+                @Override
+                public long getDuration(final TimeUnit timeUnit) {
+                    return timeUnit.convert(duration, TimeUnit.NANOSECONDS);
+                }
+            };
+        }
+
+        @Override
+        public void cancel(final String explanation) throws IOException {
+            pending.clear();
+            state = TransactionState.TRANSACTION_CANCELED;
+        }
+
+        @Override
+        public void error() {
+            pending.clear();
+            state = TransactionState.TRANSACTION_ERROR;
+        }
+
+        @Override
+        public TransactionState getState() throws IOException {
+            return state;
+        }
+
+        @Override
+        public Communicant getCommunicant() {
+            return new Communicant() {
+                @Override
+                public String getUrl() {
+                    return config.getUrl();
+                }
+
+                @Override
+                public String getHost() {
+                    return "localhost";
+                }
+
+                @Override
+                public int getPort() {
+                    return 0;
+                }
+
+                @Override
+                public String getDistinguishedName() {
+                    return null;
+                }
+            };
+        }
+    }
+}
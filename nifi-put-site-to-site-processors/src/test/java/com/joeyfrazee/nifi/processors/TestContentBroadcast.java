@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.stream.io.StreamUtils;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestContentBroadcast {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Future<byte[]> consume(final InputStream in) {
+        return executor.submit(() -> {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamUtils.copy(in, out);
+            return out.toByteArray();
+        });
+    }
+
+    @Test
+    public void testEverySubscriberReadsTheContent() throws Exception {
+        final ContentBroadcast broadcast = new ContentBroadcast(3, 1024, 2, 5, TimeUnit.SECONDS);
+        final List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 3; i++) {
+            results.add(consume(broadcast.getSubscriber(i)));
+        }
+
+        final byte[] content = new byte[10 * 1024 + 7];
+        new Random(3).nextBytes(content);
+        broadcast.publish(new ByteArrayInputStream(content));
+
+        for (final Future<byte[]> result : results) {
+            assertArrayEquals(content, result.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testAbortBeforePublishFailsEverySubscriber() throws Exception {
+        final ContentBroadcast broadcast = new ContentBroadcast(2, 1024, 2, 1, TimeUnit.HOURS);
+        final List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 2; i++) {
+            results.add(consume(broadcast.getSubscriber(i)));
+        }
+
+        // The content claim could not be read, so publish is never called
+        broadcast.abort();
+
+        for (final Future<byte[]> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Subscriber should have failed");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void testSubscriberTimesOutWithoutPublisher() throws Exception {
+        final ContentBroadcast broadcast = new ContentBroadcast(1, 1024, 2, 50, TimeUnit.MILLISECONDS);
+        try {
+            broadcast.getSubscriber(0).read();
+            fail("Subscriber should have timed out");
+        }
+        catch (InterruptedIOException e) {
+            assertEquals("Timed out waiting for content", e.getMessage());
+        }
+    }
+}
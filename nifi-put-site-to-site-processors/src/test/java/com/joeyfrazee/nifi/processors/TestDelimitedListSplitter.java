@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestDelimitedListSplitter {
+
+    private static final int FUZZ_ITERATIONS = 20000;
+
+    private static List<String> split(final DelimitedListSplitter splitter, final String list) throws IOException {
+        final List<String> values = new ArrayList<String>();
+        splitter.split(list, values::add);
+        return values;
+    }
+
+    private static List<String> parse(final String list, final char delimiter, final boolean trim) throws IOException {
+        final CSVFormat format = CSVFormat.DEFAULT.withDelimiter(delimiter).withIgnoreSurroundingSpaces(trim);
+        final List<String> values = new ArrayList<String>();
+        try (final CSVParser parser = CSVParser.parse(list, format)) {
+            for (final CSVRecord record : parser) {
+                for (final String value : record) {
+                    values.add(value);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static String randomList(final Random random, final char[] alphabet) {
+        final int length = random.nextInt(40);
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet[random.nextInt(alphabet.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static void fuzz(final char delimiter, final boolean trim, final long seed) throws IOException {
+        final DelimitedListSplitter splitter = new DelimitedListSplitter(delimiter, '"', trim);
+        final char[] alphabet = {'a', 'b', delimiter, ',', ';', ' ', '\t', '\r', '\n'};
+        final Random random = new Random(seed);
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            final String list = randomList(random, alphabet);
+            assertEquals("splitting " + list.replace("\r", "\\r").replace("\n", "\\n"), parse(list, delimiter, trim), split(splitter, list));
+        }
+    }
+
+    @Test
+    public void testSimpleList() throws IOException {
+        final DelimitedListSplitter splitter = new DelimitedListSplitter(',', '"', false);
+        assertEquals(Arrays.asList("lions", "tigers", "bears"), split(splitter, "lions,tigers,bears"));
+        assertEquals(Arrays.asList("lions", "", " tigers "), split(splitter, "lions,, tigers "));
+        assertEquals(Arrays.asList("lions", "tigers", "bears"), split(splitter, "lions\r\n\ntigers\rbears\n"));
+        assertEquals(Collections.emptyList(), split(splitter, ""));
+    }
+
+    @Test
+    public void testTrim() throws IOException {
+        final DelimitedListSplitter splitter = new DelimitedListSplitter(';', '"', true);
+        assertEquals(Arrays.asList("lions", "tigers, bears", ""), split(splitter, " lions ;\ttigers, bears ; "));
+    }
+
+    @Test
+    public void testQuotedListFallsBackToParser() throws IOException {
+        final DelimitedListSplitter splitter = new DelimitedListSplitter(',', '"', false);
+        assertEquals(Arrays.asList("lions", "tigers,bears"), split(splitter, "lions,\"tigers,bears\""));
+
+        final DelimitedListSplitter singleQuoted = new DelimitedListSplitter(',', '\'', false);
+        assertEquals(Arrays.asList("\"lions", "tigers,bears"), split(singleQuoted, "\"lions,'tigers,bears'"));
+    }
+
+    @Test
+    public void testOffsetAndLimit() throws IOException {
+        final DelimitedListSplitter splitter = new DelimitedListSplitter(',', '"', false);
+        for (final String list : Arrays.asList("lions,tigers,\n\nbears,,oh", "lions,\"tigers\",\n\nbears,,oh")) {
+            final List<String> values = new ArrayList<String>();
+            assertTrue(splitter.split(list, 0, 2, values::add));
+            assertEquals(Arrays.asList("lions", "tigers"), values);
+
+            values.clear();
+            assertTrue(splitter.split(list, 2, 2, values::add));
+            assertEquals(Arrays.asList("", "bears"), values);
+
+            values.clear();
+            assertFalse(splitter.split(list, 4, 2, values::add));
+            assertEquals(Arrays.asList("", "oh"), values);
+
+            values.clear();
+            assertFalse(splitter.split(list, 6, 2, values::add));
+            assertTrue(values.isEmpty());
+        }
+    }
+
+    @Test
+    public void testMalformedQuotedListPassesNoValues() {
+        final DelimitedListSplitter splitter = new DelimitedListSplitter(',', '"', false);
+        final List<String> values = new ArrayList<String>();
+        try {
+            splitter.split("lions\ntigers\n\"bears,\"lions\",\"tigers\"", values::add);
+            fail("Expected the list to be rejected");
+        }
+        catch (IOException e) {
+            assertTrue(values.isEmpty());
+        }
+    }
+
+    @Test
+    public void testFuzzMatchesParser() throws IOException {
+        fuzz(',', false, 1L);
+        fuzz(';', false, 2L);
+        fuzz('\t', false, 3L);
+    }
+
+    @Test
+    public void testFuzzMatchesParserWhenTrimming() throws IOException {
+        fuzz(',', true, 4L);
+        fuzz(';', true, 5L);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestDestinationScheduler {
+
+    private final Destination slow = new Destination("http://slow:8080/nifi", "input");
+
+    private final Destination fast = new Destination("http://fast:8080/nifi", "input");
+
+    @Test
+    public void testLimitIsPerDestination() {
+        final DestinationScheduler scheduler = new DestinationScheduler(2);
+
+        assertTrue(scheduler.tryAcquire(slow));
+        assertTrue(scheduler.tryAcquire(slow));
+        assertFalse(scheduler.tryAcquire(slow));
+
+        assertTrue(scheduler.tryAcquire(fast));
+        assertTrue(scheduler.tryAcquire(fast));
+
+        scheduler.release(slow);
+        assertEquals(1, scheduler.getActiveCount(slow));
+        assertTrue(scheduler.tryAcquire(slow));
+
+        scheduler.release(slow);
+        scheduler.release(slow);
+        assertEquals(0, scheduler.getActiveCount(slow));
+    }
+
+    @Test
+    public void testNoLimit() {
+        final DestinationScheduler scheduler = new DestinationScheduler(0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(scheduler.tryAcquire(slow));
+        }
+        assertEquals(0, scheduler.getActiveCount(slow));
+    }
+
+    @Test
+    public void testRotateServesEveryGroupFirst() {
+        final DestinationScheduler scheduler = new DestinationScheduler(1);
+        final List<String> groups = Arrays.asList("a", "b", "c");
+
+        final Set<String> first = new HashSet<String>();
+        for (int i = 0; i < groups.size(); i++) {
+            final List<String> rotated = scheduler.rotate(groups);
+            assertEquals(new HashSet<String>(groups), new HashSet<String>(rotated));
+            first.add(rotated.get(0));
+        }
+        assertEquals(new HashSet<String>(groups), first);
+    }
+}
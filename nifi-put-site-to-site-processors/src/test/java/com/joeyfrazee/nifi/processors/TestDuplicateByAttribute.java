@@ -18,7 +18,16 @@ package com.joeyfrazee.nifi.processors;
 
 import java.util.*;
 
+import com.joeyfrazee.nifi.lookup.DestinationLookupService;
+import com.joeyfrazee.nifi.lookup.LookupResult;
+import com.joeyfrazee.nifi.lookup.StandInDestinationLookupService;
+
+import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventType;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.apache.nifi.util.MockFlowFile;
@@ -101,4 +110,365 @@ public class TestDuplicateByAttribute {
         }
     }
 
+    @Test
+    public void testFailurePartWayThroughListLeavesNoClones() throws InitializationException {
+        // The list fails on its fourth value, after three clones were made
+        final DestinationLookupService service = new FailingDestinationLookupService(3);
+        runner.addControllerService("lookup", service);
+        runner.enableControllerService(service);
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "route");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "site");
+        runner.setProperty(DuplicateByAttribute.DESTINATION_LOOKUP_SERVICE, "lookup");
+
+        runner.enqueue("some content".getBytes(), Collections.singletonMap("route", "orders"));
+        runner.run();
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 0);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 0);
+        runner.assertTransferCount(DuplicateByAttribute.REL_FAILURE, 1);
+        runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_FAILURE).get(0).assertAttributeNotExists("site");
+    }
+
+    @Test
+    public void testChunkedFanOutResumesUntilListIsDone() {
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "list_of_things");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "thing");
+        runner.setProperty(DuplicateByAttribute.MAX_CLONES_PER_TRIGGER, "2");
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("list_of_things", "lions,tigers,bears,oh,my");
+
+        runner.enqueue("some content".getBytes(), attributes);
+        runner.run();
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 2);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 0);
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+
+        runner.run(2);
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 5);
+        runner.assertTransferCount(DuplicateByAttribute.REL_FAILURE, 0);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 1);
+        assertEquals(0, runner.getQueueSize().getObjectCount());
+
+        final List<String> actual = new ArrayList<String>();
+        for (final MockFlowFile flowFile : runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_SUCCESS)) {
+            flowFile.assertAttributeNotExists(DuplicateByAttribute.CURSOR_ATTRIBUTE);
+            flowFile.assertContentEquals("some content");
+            actual.add(flowFile.getAttribute("thing"));
+        }
+        assertEquals(Arrays.asList("lions", "tigers", "bears", "oh", "my"), actual);
+
+        final MockFlowFile original = runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_ORIGINAL).get(0);
+        original.assertAttributeNotExists(DuplicateByAttribute.CURSOR_ATTRIBUTE);
+        original.assertAttributeEquals("list_of_things", "lions,tigers,bears,oh,my");
+
+        // Every clone, in every chunk, is a child of the incoming FlowFile
+        final String originalUuid = original.getAttribute(CoreAttributes.UUID.key());
+        final Set<String> children = new HashSet<String>();
+        for (final ProvenanceEventRecord event : runner.getProvenanceEvents()) {
+            if (event.getEventType() == ProvenanceEventType.CLONE || event.getEventType() == ProvenanceEventType.FORK) {
+                assertEquals(Collections.singletonList(originalUuid), event.getParentUuids());
+                children.addAll(event.getChildUuids());
+            }
+        }
+        for (final MockFlowFile flowFile : runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_SUCCESS)) {
+            assertTrue(children.contains(flowFile.getAttribute(CoreAttributes.UUID.key())));
+        }
+    }
+
+    @Test
+    public void testChunkedQuotedListIsParsedOnce() {
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "list_of_things");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "thing");
+        runner.setProperty(DuplicateByAttribute.MAX_CLONES_PER_TRIGGER, "2");
+        final DuplicateByAttribute processor = (DuplicateByAttribute) runner.getProcessor();
+
+        runner.enqueue("some content".getBytes(), Collections.singletonMap("list_of_things", "lions,\"tigers,bears\",oh,my"));
+        runner.run();
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 2);
+        assertEquals(1, processor.getPinnedListCount());
+
+        runner.run(2);
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 4);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 1);
+        assertEquals(Arrays.asList("lions", "tigers,bears", "oh", "my"), successValues("thing"));
+        assertEquals(0, processor.getPinnedListCount());
+    }
+
+    @Test
+    public void testBatchOfFlowFilesPerTrigger() {
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "${list.attribute}");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "thing");
+        runner.setProperty(DuplicateByAttribute.BATCH_SIZE, "2");
+
+        for (final String name : Arrays.asList("cats", "dogs", "birds")) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("list.attribute", name);
+            attributes.put(name, name + "-1," + name + "-2");
+            runner.enqueue("some content".getBytes(), attributes);
+        }
+        runner.run();
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 4);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 2);
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+
+        final List<String> actual = new ArrayList<String>();
+        for (final MockFlowFile flowFile : runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_SUCCESS)) {
+            flowFile.assertAttributeNotExists(flowFile.getAttribute("list.attribute"));
+            actual.add(flowFile.getAttribute("thing"));
+        }
+        assertEquals(Arrays.asList("cats-1", "cats-2", "dogs-1", "dogs-2"), actual);
+    }
+
+    private List<String> successValues(final String... attributes) {
+        final List<String> actual = new ArrayList<String>();
+        for (final MockFlowFile flowFile : runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_SUCCESS)) {
+            final StringBuilder sb = new StringBuilder();
+            for (final String attribute : attributes) {
+                if (sb.length() > 0) {
+                    sb.append('/');
+                }
+                sb.append(flowFile.getAttribute(attribute));
+            }
+            actual.add(sb.toString());
+        }
+        return actual;
+    }
+
+    @Test
+    public void testCloneBudgetIsSharedByTheWholeBatch() {
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "list_of_things");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "thing");
+        runner.setProperty(DuplicateByAttribute.MAX_CLONES_PER_TRIGGER, "4");
+        runner.setProperty(DuplicateByAttribute.BATCH_SIZE, "10");
+
+        for (int i = 0; i < 3; i++) {
+            runner.enqueue("some content".getBytes(), Collections.singletonMap("list_of_things", "lions,tigers,bears,oh,my"));
+        }
+
+        // 15 clones in all, never more than 4 from one trigger
+        for (final int expected : new int[]{4, 8, 12, 15}) {
+            runner.run();
+            runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, expected);
+        }
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 3);
+        assertEquals(0, runner.getQueueSize().getObjectCount());
+        for (final MockFlowFile original : runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_ORIGINAL)) {
+            original.assertAttributeNotExists(DuplicateByAttribute.CURSOR_ATTRIBUTE);
+        }
+    }
+
+    @Test
+    public void testCartesianProductOfLists() {
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "sites");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "site");
+        runner.setProperty("port", "ports");
+        runner.setProperty(DuplicateByAttribute.MAX_CLONES_PER_TRIGGER, "4");
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("sites", "east,west,south");
+        attributes.put("ports", "in,audit");
+
+        runner.enqueue("some content".getBytes(), attributes);
+        runner.run(2);
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 6);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 1);
+        assertEquals(
+            Arrays.asList("east/in", "east/audit", "west/in", "west/audit", "south/in", "south/audit"),
+            successValues("site", "port")
+        );
+        for (final MockFlowFile flowFile : runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_SUCCESS)) {
+            flowFile.assertAttributeNotExists("sites");
+            flowFile.assertAttributeNotExists("ports");
+        }
+    }
+
+    @Test
+    public void testZippedLists() {
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "sites");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "site");
+        runner.setProperty("port", "ports");
+        runner.setProperty(DuplicateByAttribute.COMBINATION_STRATEGY, DuplicateByAttribute.COMBINATION_ZIP.getValue());
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("sites", "east,west");
+        attributes.put("ports", "in,audit");
+        runner.enqueue("some content".getBytes(), attributes);
+
+        final Map<String, String> mismatched = new HashMap<String, String>();
+        mismatched.put("sites", "east,west");
+        mismatched.put("ports", "in");
+        runner.enqueue("some content".getBytes(), mismatched);
+
+        runner.run(2);
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 2);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 1);
+        runner.assertTransferCount(DuplicateByAttribute.REL_FAILURE, 1);
+        assertEquals(Arrays.asList("east/in", "west/audit"), successValues("site", "port"));
+    }
+
+    @Test
+    public void testJsonList() {
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "destinations");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "site");
+        runner.setProperty(DuplicateByAttribute.LIST_FORMAT, DuplicateByAttribute.FORMAT_JSON.getValue());
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("destinations", "[{\"site\": \"east\", \"port\": \"in\"}, {\"site\": \"west\", \"port\": 8080, \"tags\": [\"a\"], \"note\": null}, \"south\"]");
+        runner.enqueue("some content".getBytes(), attributes);
+
+        final Map<String, String> malformed = new HashMap<String, String>();
+        malformed.put("destinations", "[{\"site\": \"east\"}, {\"site\": ");
+        runner.enqueue("some content".getBytes(), malformed);
+
+        runner.run(2);
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 3);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 1);
+        runner.assertTransferCount(DuplicateByAttribute.REL_FAILURE, 1);
+        assertEquals(Arrays.asList("east/in/null", "west/8080/[\"a\"]", "south/null/null"), successValues("site", "port", "tags"));
+        for (final MockFlowFile flowFile : runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_SUCCESS)) {
+            flowFile.assertAttributeNotExists("destinations");
+            flowFile.assertAttributeNotExists("note");
+        }
+    }
+
+    @Test
+    public void testJsonListDoesNotAllowFurtherLists() {
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "destinations");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "site");
+        runner.setProperty(DuplicateByAttribute.LIST_FORMAT, DuplicateByAttribute.FORMAT_JSON.getValue());
+        runner.setProperty("port", "ports");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testListFromLookupService() throws InitializationException {
+        final StandInDestinationLookupService service = new StandInDestinationLookupService();
+        service.put("orders", "east", "west");
+        runner.addControllerService("lookup", service);
+        runner.enableControllerService(service);
+
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "route");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "site");
+        runner.setProperty(DuplicateByAttribute.DESTINATION_LOOKUP_SERVICE, "lookup");
+
+        for (final String route : Arrays.asList("orders", "orders", "unknown")) {
+            runner.enqueue("some content".getBytes(), Collections.singletonMap("route", route));
+        }
+        runner.run(3);
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 4);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 2);
+        runner.assertTransferCount(DuplicateByAttribute.REL_FAILURE, 1);
+        assertEquals(Arrays.asList("east", "west", "east", "west"), successValues("site"));
+        assertEquals(2, service.getLoadCount());
+        assertEquals(1, runner.getCounterValue("Destination Lookup Cache Hits").intValue());
+        assertEquals(2, runner.getCounterValue("Destination Lookup Cache Misses").intValue());
+    }
+
+    @Test
+    public void testChunksUseTheListFoundForTheFirstChunk() throws Exception {
+        final StandInDestinationLookupService service = new StandInDestinationLookupService();
+        service.put("orders", "east", "west", "north");
+        runner.addControllerService("lookup", service);
+        runner.setProperty(service, StandInDestinationLookupService.CACHE_EXPIRATION, "50 millis");
+        runner.enableControllerService(service);
+
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "route");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "site");
+        runner.setProperty(DuplicateByAttribute.DESTINATION_LOOKUP_SERVICE, "lookup");
+        runner.setProperty(DuplicateByAttribute.MAX_CLONES_PER_TRIGGER, "2");
+
+        runner.enqueue("some content".getBytes(), Collections.singletonMap("route", "orders"));
+        runner.run();
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 2);
+
+        // The list changes and the cached one expires between the chunks
+        service.put("orders", "south", "east", "west", "north");
+        Thread.sleep(100L);
+        runner.run();
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 3);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 1);
+        assertEquals(Arrays.asList("east", "west", "north"), successValues("site"));
+        assertEquals(1, service.getLoadCount());
+        for (final MockFlowFile flowFile : runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_SUCCESS)) {
+            flowFile.assertAttributeNotExists(DuplicateByAttribute.LIST_FINGERPRINT_ATTRIBUTE);
+        }
+        runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_ORIGINAL).get(0).assertAttributeNotExists(DuplicateByAttribute.LIST_FINGERPRINT_ATTRIBUTE);
+    }
+
+    @Test
+    public void testChunkWhoseListIsNoLongerPinnedIsCheckedAgainstItsFingerprint() throws Exception {
+        final StandInDestinationLookupService service = new StandInDestinationLookupService();
+        service.put("orders", "east", "west", "north");
+        runner.addControllerService("lookup", service);
+        runner.enableControllerService(service);
+
+        runner.setProperty(DuplicateByAttribute.ATTRIBUTE_TO_DUPLICATE_BY, "route");
+        runner.setProperty(DuplicateByAttribute.OUTPUT_ATTRIBUTE, "site");
+        runner.setProperty(DuplicateByAttribute.DESTINATION_LOOKUP_SERVICE, "lookup");
+
+        // Both FlowFiles were started by another processor instance, one
+        // with the list as it is now and one with a list since changed
+        final Map<String, String> unchanged = new HashMap<String, String>();
+        unchanged.put("route", "orders");
+        unchanged.put(DuplicateByAttribute.CURSOR_ATTRIBUTE, "1");
+        unchanged.put(DuplicateByAttribute.LIST_FINGERPRINT_ATTRIBUTE, PinnedLists.fingerprint(Arrays.asList("east", "west", "north")));
+        runner.enqueue("unchanged".getBytes(), unchanged);
+        final Map<String, String> changed = new HashMap<String, String>(unchanged);
+        changed.put(DuplicateByAttribute.LIST_FINGERPRINT_ATTRIBUTE, PinnedLists.fingerprint(Arrays.asList("south", "west", "north")));
+        runner.enqueue("changed".getBytes(), changed);
+        runner.run(2);
+
+        runner.assertTransferCount(DuplicateByAttribute.REL_SUCCESS, 2);
+        runner.assertTransferCount(DuplicateByAttribute.REL_ORIGINAL, 1);
+        runner.assertTransferCount(DuplicateByAttribute.REL_FAILURE, 1);
+        assertEquals(Arrays.asList("west", "north"), successValues("site"));
+        runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_ORIGINAL).get(0).assertContentEquals("unchanged");
+        final MockFlowFile failed = runner.getFlowFilesForRelationship(DuplicateByAttribute.REL_FAILURE).get(0);
+        failed.assertContentEquals("changed");
+        failed.assertAttributeNotExists(DuplicateByAttribute.CURSOR_ATTRIBUTE);
+        failed.assertAttributeNotExists(DuplicateByAttribute.LIST_FINGERPRINT_ATTRIBUTE);
+    }
+
+    /**
+     * Returns a list of five destinations that cannot be read past the given
+     * index, as if its source went away part way through.
+     */
+    private static class FailingDestinationLookupService extends AbstractControllerService implements DestinationLookupService {
+
+        private final int readable;
+
+        private FailingDestinationLookupService(final int readable) {
+            this.readable = readable;
+        }
+
+        @Override
+        public LookupResult lookup(final String key) {
+            return new LookupResult(new AbstractList<String>() {
+                @Override
+                public String get(final int index) {
+                    if (index >= readable) {
+                        throw new IllegalStateException("Destination " + index + " could not be read");
+                    }
+                    return "site-" + index;
+                }
+
+                @Override
+                public int size() {
+                    return 5;
+                }
+            }, false);
+        }
+    }
+
 }
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joeyfrazee.nifi.processors;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.nifi.remote.client.SiteToSiteClient;
+import org.apache.nifi.remote.client.SiteToSiteClientConfig;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that content is streamed rather than buffered. These run in their
+ * own surefire execution with a small heap and size their content from
+ * {@link Runtime#maxMemory()}, so that buffering a second copy of content
+ * the mock session already holds, or all of a stream larger than the heap,
+ * fails with an OutOfMemoryError.
+ */
+public class TestLargeContent {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private StreamingPutSiteToSite processor;
+
+    private TestRunner testRunner;
+
+    @Before
+    public void init() {
+        processor = new StreamingPutSiteToSite();
+        testRunner = TestRunners.newTestRunner(processor);
+        testRunner.setProperty(PutSiteToSite.REMOTE_URL, "${remote.url}");
+        testRunner.setProperty(PutSiteToSite.REMOTE_INPUT_PORT, "input");
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Enqueues generated content of the given size without keeping a
+     * reference to it, and returns its checksum.
+     */
+    private long enqueue(final int size, final Map<String, String> attributes) throws IOException {
+        final byte[] content = new byte[size];
+        new GeneratedInputStream(size, 42).read(content);
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        testRunner.enqueue(content, attributes);
+        return crc.getValue();
+    }
+
+    private static long checksum(final InputStream in) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, len);
+        }
+        return crc.getValue();
+    }
+
+    @Test
+    public void testContentIsNotCopiedOnSend() throws IOException {
+        final int size = (int) Math.min(Runtime.getRuntime().maxMemory() * 2 / 5, Integer.MAX_VALUE - 8);
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("remote.url", "http://localhost:8080/nifi");
+        final long checksum = enqueue(size, attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        final InMemoryReceiver.Received received = processor.clients.get(0).getReceived().get(0);
+        assertEquals(size, received.getSize());
+        assertEquals(checksum, received.getChecksum());
+    }
+
+    @Test
+    public void testFanOutDoesNotCopyContent() throws IOException {
+        testRunner.setProperty(PutSiteToSite.DESTINATIONS_ATTRIBUTE, "destinations");
+        testRunner.setProperty(PutSiteToSite.MAX_CACHEABLE_CONTENT_SIZE, "64 KB");
+
+        final int size = (int) Math.min(Runtime.getRuntime().maxMemory() * 2 / 5, Integer.MAX_VALUE - 8);
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("destinations", "http://localhost:8080/nifi,http://localhost:9090/nifi,http://localhost:7070/nifi");
+        final long checksum = enqueue(size, attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        assertEquals(3, processor.clients.size());
+        for (final InMemorySiteToSiteClient client : processor.clients) {
+            assertEquals(size, client.getReceived().get(0).getSize());
+            assertEquals(checksum, client.getReceived().get(0).getChecksum());
+        }
+    }
+
+    @Test
+    public void testBroadcastOfContentLargerThanHeap() throws Exception {
+        // The mock session cannot hold content larger than the heap, so the
+        // broadcast is fed from a generated stream instead
+        final long size = Runtime.getRuntime().maxMemory() + 16 * 1024 * 1024;
+        final long expected = checksum(new GeneratedInputStream(size, 7));
+
+        final ContentBroadcast broadcast = new ContentBroadcast(3, 64 * 1024, 16, 30, TimeUnit.SECONDS);
+        final List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int i = 0; i < 3; i++) {
+            final InputStream in = broadcast.getSubscriber(i);
+            results.add(executor.submit(() -> checksum(in)));
+        }
+        broadcast.publish(new GeneratedInputStream(size, 7));
+
+        for (final Future<Long> result : results) {
+            assertEquals(Long.valueOf(expected), result.get(60, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * A stream of the given length of pseudo-random bytes that are the same
+     * for the same seed, generated as they are read.
+     */
+    private static final class GeneratedInputStream extends InputStream {
+
+        private long remaining;
+
+        private long state;
+
+        private GeneratedInputStream(final long length, final long seed) {
+            this.remaining = length;
+            this.state = seed | 1;
+        }
+
+        private byte next() {
+            state ^= state << 13;
+            state ^= state >>> 7;
+            state ^= state << 17;
+            return (byte) state;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) {
+                return -1;
+            }
+            remaining--;
+            return next() & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            final int n = (int) Math.min(len, remaining);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = next();
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    private static class StreamingPutSiteToSite extends PutSiteToSite {
+
+        private final List<InMemorySiteToSiteClient> clients = new CopyOnWriteArrayList<InMemorySiteToSiteClient>();
+
+        @Override
+        protected SiteToSiteClient createClient(final SiteToSiteClientConfig config) {
+            final InMemorySiteToSiteClient client = new InMemorySiteToSiteClient(config);
+            client.setRetainContent(false);
+            clients.add(client);
+            return client;
+        }
+    }
+}
@@ -16,23 +16,846 @@
  */
 package com.joeyfrazee.nifi.processors;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.nifi.remote.client.SiteToSiteClient;
+import org.apache.nifi.remote.client.SiteToSiteClientConfig;
+import org.apache.nifi.remote.protocol.SiteToSiteTransportProtocol;
+import org.apache.nifi.ssl.StandardSSLContextService;
+import org.apache.nifi.util.FlowFileUnpackagerV3;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 public class TestPutSiteToSite {
 
+    private StandInPutSiteToSite processor;
+
     private TestRunner testRunner;
 
     @Before
     public void init() {
-        testRunner = TestRunners.newTestRunner(PutSiteToSite.class);
+        processor = new StandInPutSiteToSite();
+        testRunner = TestRunners.newTestRunner(processor);
+        testRunner.setProperty(PutSiteToSite.REMOTE_URL, "${remote.url}");
+        testRunner.setProperty(PutSiteToSite.REMOTE_INPUT_PORT, "input");
+    }
+
+    private void enqueue(final String content, final String remoteUrl) {
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("remote.url", remoteUrl);
+        testRunner.enqueue(content.getBytes(), attributes);
     }
 
     @Test
     public void testProcessor() {
+        enqueue("some content", "http://localhost:8080/nifi");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        assertEquals(1, processor.clients.size());
+
+        final List<InMemoryReceiver.Received> received = processor.clients.get(0).getReceived();
+        assertEquals(1, received.size());
+        assertEquals("some content", new String(received.get(0).getContent()));
+        assertEquals("http://localhost:8080/nifi", received.get(0).getAttributes().get("remote.url"));
+    }
+
+    @Test
+    public void testClientsAreCachedPerDestination() {
+        enqueue("a", "http://localhost:8080/nifi");
+        enqueue("b", "http://localhost:8080/nifi");
+        enqueue("c", "http://localhost:9090/nifi");
+        enqueue("d", "http://localhost:8080/nifi");
+        testRunner.run(4, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 4);
+        assertEquals(2, processor.clients.size());
+        assertEquals(3, processor.clients.get(0).getTransactionCount());
+        assertEquals(1, processor.clients.get(1).getTransactionCount());
+
+        for (final InMemorySiteToSiteClient client : processor.clients) {
+            assertTrue(client.isClosed());
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedClientIsClosed() {
+        testRunner.setProperty(PutSiteToSite.MAX_CACHED_CLIENTS, "1");
+        enqueue("a", "http://localhost:8080/nifi");
+        enqueue("b", "http://localhost:9090/nifi");
+        enqueue("c", "http://localhost:8080/nifi");
+        testRunner.run(3, false, true);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 3);
+        assertEquals(3, processor.clients.size());
+        assertTrue(processor.clients.get(0).isClosed());
+        assertTrue(processor.clients.get(1).isClosed());
+        assertFalse(processor.clients.get(2).isClosed());
+
+        processor.onStopped();
+        assertTrue(processor.clients.get(2).isClosed());
+    }
+
+    @Test
+    public void testIdleClientIsClosedWhileQueueIsEmpty() throws InterruptedException {
+        testRunner.setProperty(PutSiteToSite.CLIENT_IDLE_EXPIRATION, "50 millis");
+        enqueue("a", "http://localhost:8080/nifi");
+        testRunner.run(1, false, true);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        assertFalse(processor.clients.get(0).isClosed());
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!processor.clients.get(0).isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(processor.clients.get(0).isClosed());
+        processor.onStopped();
+    }
+
+    @Test
+    public void testMetricsPerDestination() {
+        processor.failingUrls.add("http://localhost:9090/nifi");
+        enqueue("a", "http://localhost:8080/nifi");
+        enqueue("bb", "http://localhost:8080/nifi");
+        enqueue("c", "http://localhost:9090/nifi");
+        testRunner.run(3, true, true);
+
+        testRunner.assertTransferCount(PutSiteToSite.REL_SUCCESS, 2);
+        testRunner.assertTransferCount(PutSiteToSite.REL_FAILURE, 1);
+
+        final DestinationMetrics.Snapshot healthy = processor.getMetrics().getSnapshot(new Destination("http://localhost:8080/nifi", "input"));
+        assertEquals(2, healthy.getFlowFiles());
+        assertEquals(3, healthy.getBytes());
+        assertEquals(1, healthy.getCacheMisses());
+        assertEquals(1, healthy.getCacheHits());
+        assertEquals(0, healthy.getFailures());
+        assertTrue(healthy.getFlowFilesPerSecond() > 0);
+        for (final DestinationMetrics.Phase phase : DestinationMetrics.Phase.values()) {
+            assertEquals(2, healthy.getLatency(phase).getCount());
+            assertTrue(healthy.getLatency(phase).getPercentileNanos(99) <= healthy.getLatency(phase).getMaxNanos());
+        }
+
+        final DestinationMetrics.Snapshot failing = processor.getMetrics().getSnapshot(new Destination("http://localhost:9090/nifi", "input"));
+        assertEquals(0, failing.getFlowFiles());
+        assertEquals(1, failing.getFailures());
+        assertEquals(1, failing.getLatency(DestinationMetrics.Phase.SEND).getCount());
+        assertEquals(0, failing.getLatency(DestinationMetrics.Phase.CONFIRM).getCount());
+
+        assertEquals(Long.valueOf(2), testRunner.getCounterValue("FlowFiles Sent"));
+        assertEquals(Long.valueOf(3), testRunner.getCounterValue("Bytes Sent"));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Client Cache Hits"));
+        assertEquals(Long.valueOf(2), testRunner.getCounterValue("Client Cache Misses"));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Failed Transfers"));
+    }
+
+    @Test
+    public void testMetricsAreKeptForBoundedNumberOfDestinations() {
+        testRunner.setProperty(PutSiteToSite.MAX_METRICS_DESTINATIONS, "2");
+        enqueue("a", "http://localhost:8080/nifi");
+        enqueue("b", "http://localhost:9090/nifi");
+        enqueue("c", "http://localhost:10080/nifi");
+        testRunner.run(3, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 3);
+        assertEquals(2, processor.getMetrics().size());
+        assertEquals(1, processor.getMetrics().getEvictedCount());
+        assertNull(processor.getMetrics().getSnapshot(new Destination("http://localhost:8080/nifi", "input")));
+        assertNotNull(processor.getMetrics().getSnapshot(new Destination("http://localhost:10080/nifi", "input")));
+    }
+
+    @Test
+    public void testPeerStateIsKeptAcrossRestarts() throws Exception {
+        final File stateDirectory = Files.createTempDirectory("peer-state").toFile();
+        stateDirectory.deleteOnExit();
+        final InMemoryReceiver first = new InMemoryReceiver();
+        final InMemoryReceiver second = new InMemoryReceiver();
+        processor.receivers.put("http://localhost:8080/nifi", first);
+        processor.receivers.put("http://localhost:9090/nifi", second);
+        testRunner.setProperty(PutSiteToSite.PEER_STATE_DIRECTORY, stateDirectory.getAbsolutePath());
+
+        enqueue("a", "http://localhost:8080/nifi");
+        enqueue("b", "http://localhost:9090/nifi");
+        testRunner.run(2, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 2);
+        assertEquals(1, first.getPeerDiscoveryCount());
+        assertEquals(1, second.getPeerDiscoveryCount());
+        for (final File file : stateDirectory.listFiles()) {
+            file.deleteOnExit();
+        }
+        assertEquals(3, stateDirectory.listFiles().length);
+
+        // Restart; both clients are built and connected in the background
+        testRunner.run(1, false, true);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ((first.getTransactionCount() < 2 || second.getTransactionCount() < 2) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, processor.clients.size());
+        assertEquals(1, first.getPeerDiscoveryCount());
+        assertEquals(1, second.getPeerDiscoveryCount());
+
+        enqueue("c", "http://localhost:8080/nifi");
+        enqueue("d", "http://localhost:9090/nifi");
+        testRunner.run(2, true, false);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 4);
+        assertEquals(4, processor.clients.size());
+        assertEquals(2, first.getReceived().size());
+        final DestinationMetrics.Snapshot metrics = processor.getMetrics().getSnapshot(new Destination("http://localhost:8080/nifi", "input"));
+        assertEquals(1, metrics.getCacheHits());
+        assertEquals(0, metrics.getCacheMisses());
+    }
+
+    @Test
+    public void testPeerFileIsKeptPerTransportAndSecurity() {
+        final PeerStateDirectory directory = new PeerStateDirectory(new File("peer-state"));
+        final Destination destination = new Destination("https://localhost:8443/nifi", "input");
+        final SiteToSiteClientCache.Key raw = new SiteToSiteClientCache.Key(destination, false, null, "REQUIRED", SiteToSiteTransportProtocol.RAW);
+
+        assertEquals(directory.getPeerFile(raw),
+            directory.getPeerFile(new SiteToSiteClientCache.Key(destination, false, null, "REQUIRED", SiteToSiteTransportProtocol.RAW)));
+        final Set<File> files = new HashSet<File>();
+        files.add(directory.getPeerFile(raw));
+        files.add(directory.getPeerFile(new SiteToSiteClientCache.Key(destination, false, null, "REQUIRED", SiteToSiteTransportProtocol.HTTP)));
+        files.add(directory.getPeerFile(new SiteToSiteClientCache.Key(destination, false, "ssl-context", "REQUIRED", SiteToSiteTransportProtocol.RAW)));
+        files.add(directory.getPeerFile(new SiteToSiteClientCache.Key(destination, false, "ssl-context", "WANT", SiteToSiteTransportProtocol.RAW)));
+        files.add(directory.getPeerFile(new SiteToSiteClientCache.Key(destination, true, null, "REQUIRED", SiteToSiteTransportProtocol.RAW)));
+        assertEquals(5, files.size());
+    }
+
+    @Test
+    public void testTransportProtocolPerFlowFile() {
+        testRunner.setProperty(PutSiteToSite.TRANSPORT_PROTOCOL, "${transport}");
+        testRunner.setProperty(PutSiteToSite.COMMUNICATIONS_TIMEOUT, "5 secs");
+        for (final String transport : Arrays.asList("HTTP", "raw", "http", "FTP")) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("remote.url", "http://localhost:8080/nifi");
+            attributes.put("transport", transport);
+            testRunner.enqueue(transport.getBytes(), attributes);
+        }
+        testRunner.run(4, true, true);
+
+        testRunner.assertTransferCount(PutSiteToSite.REL_SUCCESS, 3);
+        testRunner.assertTransferCount(PutSiteToSite.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_FAILURE).get(0).assertContentEquals("FTP");
+
+        assertEquals(2, processor.clients.size());
+        assertEquals(SiteToSiteTransportProtocol.HTTP, processor.clients.get(0).getConfig().getTransportProtocol());
+        assertEquals(2, processor.clients.get(0).getTransactionCount());
+        assertEquals(SiteToSiteTransportProtocol.RAW, processor.clients.get(1).getConfig().getTransportProtocol());
+        assertEquals(5000, processor.clients.get(1).getConfig().getTimeout(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testTransportAndIdleExpirationReachTheClientConfig() {
+        testRunner.setProperty(PutSiteToSite.TRANSPORT_PROTOCOL, "HTTP");
+        testRunner.setProperty(PutSiteToSite.CONNECTION_IDLE_EXPIRATION, "90 secs");
+        enqueue("a", "http://localhost:8080/nifi");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        assertEquals(1, processor.clients.size());
+        final SiteToSiteClientConfig config = processor.clients.get(0).getConfig();
+        assertEquals(SiteToSiteTransportProtocol.HTTP, config.getTransportProtocol());
+        assertEquals(90000, config.getIdleConnectionExpiration(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testInvalidTransportProtocol() {
+        testRunner.setProperty(PutSiteToSite.TRANSPORT_PROTOCOL, "FTP");
+        testRunner.assertNotValid();
+        testRunner.setProperty(PutSiteToSite.TRANSPORT_PROTOCOL, "HTTP");
+        testRunner.assertValid();
+    }
+
+    @Test
+    public void testBatchIsSentInOneTransactionPerDestination() {
+        testRunner.setProperty(PutSiteToSite.BATCH_COUNT, "10");
+        enqueue("a", "http://localhost:8080/nifi");
+        enqueue("b", "http://localhost:9090/nifi");
+        enqueue("c", "http://localhost:8080/nifi");
+        enqueue("d", "http://localhost:8080/nifi");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 4);
+        assertEquals(2, processor.clients.size());
+        assertEquals(1, processor.clients.get(0).getTransactionCount());
+        assertEquals(3, processor.clients.get(0).getReceived().size());
+        assertEquals(1, processor.clients.get(1).getTransactionCount());
+        assertEquals(1, processor.clients.get(1).getReceived().size());
+    }
+
+    @Test
+    public void testPipelinedTransactions() {
+        testRunner.setProperty(PutSiteToSite.BATCH_COUNT, "9");
+        testRunner.setProperty(PutSiteToSite.MAX_IN_FLIGHT_TRANSACTIONS, "3");
+        processor.failingTransaction = 2;
+        for (int i = 0; i < 9; i++) {
+            enqueue(String.valueOf(i), "http://localhost:8080/nifi");
+        }
+        testRunner.run();
+
+        assertEquals(1, processor.clients.size());
+        assertEquals(3, processor.clients.get(0).getTransactionCount());
+        assertEquals(6, processor.clients.get(0).getReceived().size());
+
+        testRunner.assertTransferCount(PutSiteToSite.REL_SUCCESS, 6);
+        testRunner.assertTransferCount(PutSiteToSite.REL_FAILURE, 3);
+        final Set<String> failed = new HashSet<String>();
+        for (final MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_FAILURE)) {
+            failed.add(new String(flowFile.toByteArray()));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("3", "4", "5")), failed);
+    }
+
+    @Test
+    public void testBatchSizeLimitsFlowFilesPulled() {
+        testRunner.setProperty(PutSiteToSite.BATCH_COUNT, "10");
+        testRunner.setProperty(PutSiteToSite.BATCH_SIZE, "2 B");
+        enqueue("a", "http://localhost:8080/nifi");
+        enqueue("b", "http://localhost:8080/nifi");
+        enqueue("c", "http://localhost:8080/nifi");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 2);
+        testRunner.assertQueueNotEmpty();
+    }
+
+    @Test
+    public void testFailedConfirmRoutesOnlyThatDestination() {
+        testRunner.setProperty(PutSiteToSite.BATCH_COUNT, "10");
+        processor.failingUrls.add("http://localhost:9090/nifi");
+        enqueue("a", "http://localhost:8080/nifi");
+        enqueue("b", "http://localhost:9090/nifi");
+        enqueue("c", "http://localhost:9090/nifi");
+        enqueue("d", "http://localhost:8080/nifi");
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSiteToSite.REL_SUCCESS, 2);
+        testRunner.assertTransferCount(PutSiteToSite.REL_FAILURE, 2);
+        for (final MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_FAILURE)) {
+            flowFile.assertAttributeEquals("remote.url", "http://localhost:9090/nifi");
+            flowFile.assertAttributeNotExists(PutSiteToSite.FAILED_DESTINATIONS);
+        }
+    }
+
+    @Test
+    public void testFailedFlowFileIsReroutedByItsAttributes() {
+        processor.failingUrls.add("http://localhost:9090/nifi");
+        enqueue("a", "http://localhost:9090/nifi");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_FAILURE, 1);
+        final MockFlowFile failed = testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_FAILURE).get(0);
+        failed.assertAttributeNotExists(PutSiteToSite.FAILED_DESTINATIONS);
+
+        // Routing upstream of the processor sends the retry elsewhere
+        testRunner.clearTransferState();
+        final Map<String, String> attributes = new HashMap<String, String>(failed.getAttributes());
+        attributes.put("remote.url", "http://localhost:8080/nifi");
+        testRunner.enqueue("a".getBytes(), attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        assertEquals("http://localhost:8080/nifi", processor.clients.get(processor.clients.size() - 1).getConfig().getUrl());
+    }
+
+    @Test
+    public void testFanOutToDestinationsAttribute() {
+        testRunner.setProperty(PutSiteToSite.DESTINATIONS_ATTRIBUTE, "destinations");
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("destinations", "http://localhost:8080/nifi, http://localhost:9090/nifi,http://localhost:7070/nifi");
+        testRunner.enqueue("some content".getBytes(), attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_SUCCESS).get(0).assertAttributeNotExists(PutSiteToSite.FAILED_DESTINATIONS);
+        assertEquals(3, processor.clients.size());
+        for (final InMemorySiteToSiteClient client : processor.clients) {
+            assertEquals(1, client.getReceived().size());
+            assertEquals("some content", new String(client.getReceived().get(0).getContent()));
+        }
+    }
+
+    @Test
+    public void testFanOutStreamsContentTooLargeToCache() {
+        testRunner.setProperty(PutSiteToSite.DESTINATIONS_ATTRIBUTE, "destinations");
+        testRunner.setProperty(PutSiteToSite.MAX_CACHEABLE_CONTENT_SIZE, "64 KB");
+        testRunner.setProperty(PutSiteToSite.MAX_CONCURRENT_SENDS, "2");
+
+        final byte[] content = new byte[1024 * 1024 + 17];
+        new Random(7).nextBytes(content);
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("destinations", "http://localhost:8080/nifi,http://localhost:9090/nifi,http://localhost:7070/nifi");
+        testRunner.enqueue(content, attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        assertEquals(3, processor.clients.size());
+        for (final InMemorySiteToSiteClient client : processor.clients) {
+            assertArrayEquals(content, client.getReceived().get(0).getContent());
+        }
+    }
+
+    @Test
+    public void testFanOutRetriesOnlyFailedDestinations() {
+        testRunner.setProperty(PutSiteToSite.DESTINATIONS_ATTRIBUTE, "destinations");
+        testRunner.setProperty(PutSiteToSite.MAX_CONCURRENT_SENDS, "2");
+        processor.failingUrls.add("http://localhost:9090/nifi");
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("destinations", "http://localhost:8080/nifi,http://localhost:9090/nifi,http://localhost:7070/nifi");
+        testRunner.enqueue("some content".getBytes(), attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_FAILURE, 1);
+        final MockFlowFile failed = testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_FAILURE).get(0);
+        failed.assertAttributeEquals(PutSiteToSite.FAILED_DESTINATIONS, "http://localhost:9090/nifi");
+        failed.assertAttributeEquals(PutSiteToSite.FAILED_DESTINATIONS_PROCESSOR, processor.getIdentifier());
+
+        processor.failingUrls.clear();
+        processor.clients.clear();
+        testRunner.clearTransferState();
+        testRunner.enqueue("some content".getBytes(), failed.getAttributes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_SUCCESS).get(0).assertAttributeNotExists(PutSiteToSite.FAILED_DESTINATIONS);
+        assertEquals(1, processor.clients.size());
+        assertEquals("http://localhost:9090/nifi", processor.clients.get(0).getConfig().getUrl());
+    }
+
+    @Test
+    public void testFailedDestinationsOfAnotherProcessorAreIgnored() {
+        testRunner.setProperty(PutSiteToSite.DESTINATIONS_ATTRIBUTE, "destinations");
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("destinations", "http://localhost:8080/nifi,http://localhost:7070/nifi");
+        attributes.put(PutSiteToSite.FAILED_DESTINATIONS, "http://localhost:9090/nifi");
+        attributes.put(PutSiteToSite.FAILED_DESTINATIONS_PROCESSOR, "some-other-processor");
+        testRunner.enqueue("some content".getBytes(), attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_SUCCESS).get(0)
+            .assertAttributeEquals(PutSiteToSite.FAILED_DESTINATIONS, "http://localhost:9090/nifi");
+        assertEquals(2, processor.clients.size());
+        for (final InMemorySiteToSiteClient client : processor.clients) {
+            assertNotEquals("http://localhost:9090/nifi", client.getConfig().getUrl());
+        }
+    }
+
+    @Test
+    public void testOpenCircuitSkipsConnectionAttempts() {
+        testRunner.setProperty(PutSiteToSite.CIRCUIT_BREAKER_FAILURE_THRESHOLD, "2");
+        testRunner.setProperty(PutSiteToSite.CIRCUIT_BREAKER_COOL_DOWN, "1 hour");
+        processor.failingUrls.add("http://localhost:9090/nifi");
+        enqueue("a", "http://localhost:9090/nifi");
+        enqueue("b", "http://localhost:9090/nifi");
+        enqueue("c", "http://localhost:9090/nifi");
+        enqueue("d", "http://localhost:8080/nifi");
+        testRunner.run(4, false, true);
+
+        testRunner.assertTransferCount(PutSiteToSite.REL_FAILURE, 3);
+        testRunner.assertTransferCount(PutSiteToSite.REL_SUCCESS, 1);
+        assertEquals(3, processor.clients.size());
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Circuits Opened"));
+        assertEquals(1, processor.getMetrics().getOpenCircuitCount());
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Circuit Breaker Rejections"));
+
+        final List<MockFlowFile> failed = testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_FAILURE);
+        failed.get(0).assertAttributeNotExists(PutSiteToSite.OPEN_CIRCUITS);
+        failed.get(1).assertAttributeNotExists(PutSiteToSite.OPEN_CIRCUITS);
+        failed.get(2).assertAttributeEquals(PutSiteToSite.OPEN_CIRCUITS, "http://localhost:9090/nifi");
+    }
+
+    @Test
+    public void testTrialAfterCoolDownClosesCircuit() throws InterruptedException {
+        testRunner.setProperty(PutSiteToSite.CIRCUIT_BREAKER_FAILURE_THRESHOLD, "1");
+        testRunner.setProperty(PutSiteToSite.CIRCUIT_BREAKER_COOL_DOWN, "100 millis");
+        processor.failingUrls.add("http://localhost:9090/nifi");
+        enqueue("a", "http://localhost:9090/nifi");
+        testRunner.run(1, false, true);
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_FAILURE, 1);
+        assertEquals(1, processor.getMetrics().getOpenCircuitCount());
+
+        processor.failingUrls.clear();
+        Thread.sleep(200L);
+        enqueue("b", "http://localhost:9090/nifi");
+        testRunner.run(1, true, false);
+
+        testRunner.assertTransferCount(PutSiteToSite.REL_SUCCESS, 1);
+        assertEquals(0, processor.getMetrics().getOpenCircuitCount());
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Circuits Opened"));
+    }
+
+    @Test
+    public void testOpenCircuitsAreForgottenOnRestart() {
+        testRunner.setProperty(PutSiteToSite.CIRCUIT_BREAKER_FAILURE_THRESHOLD, "1");
+        testRunner.setProperty(PutSiteToSite.CIRCUIT_BREAKER_COOL_DOWN, "1 hour");
+        processor.failingUrls.add("http://localhost:9090/nifi");
+        enqueue("a", "http://localhost:9090/nifi");
+        testRunner.run(1, false, true);
+        assertEquals(1, processor.getMetrics().getOpenCircuitCount());
+
+        // Nothing is queued, but the count drops as soon as the processor stops
+        testRunner.run(0, true, false);
+        assertEquals(0, processor.getMetrics().getOpenCircuitCount());
+    }
+
+    @Test
+    public void testEndToEndDeliveryToReceivers() {
+        final InMemoryReceiver east = new InMemoryReceiver();
+        final InMemoryReceiver west = new InMemoryReceiver();
+        processor.receivers.put("http://east:8080/nifi", east);
+        processor.receivers.put("http://west:8080/nifi", west);
+        testRunner.setProperty(PutSiteToSite.BATCH_COUNT, "5");
+        testRunner.setProperty(PutSiteToSite.MAX_CACHED_CLIENTS, "1");
+
+        for (int i = 0; i < 20; i++) {
+            enqueue("content " + i, (i % 2 == 0) ? "http://east:8080/nifi" : "http://west:8080/nifi");
+        }
+        testRunner.run(4, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 20);
+        assertEquals(10, east.getReceived().size());
+        assertEquals(10, west.getReceived().size());
+        for (final InMemoryReceiver.Received received : east.getReceived()) {
+            assertEquals("http://east:8080/nifi", received.getAttributes().get("remote.url"));
+        }
+    }
+
+    @Test
+    public void testFailureRateRoutesFailedBatches() {
+        final InMemoryReceiver receiver = new InMemoryReceiver();
+        receiver.setFailureRate(0.5);
+        processor.receivers.put("http://localhost:8080/nifi", receiver);
+        testRunner.setProperty(PutSiteToSite.CIRCUIT_BREAKER_FAILURE_THRESHOLD, "0");
+
+        for (int i = 0; i < 50; i++) {
+            enqueue("content " + i, "http://localhost:8080/nifi");
+        }
+        testRunner.run(50, true, true);
+
+        final int succeeded = testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_SUCCESS).size();
+        final int failed = testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_FAILURE).size();
+        assertEquals(50, succeeded + failed);
+        assertEquals(succeeded, receiver.getReceived().size());
+        for (final MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(PutSiteToSite.REL_FAILURE)) {
+            flowFile.assertAttributeEquals("remote.url", "http://localhost:8080/nifi");
+        }
+    }
+
+    @Test
+    public void testThrottledReceiver() {
+        final InMemoryReceiver receiver = new InMemoryReceiver();
+        receiver.setBytesPerSecond(1024 * 1024);
+        receiver.setRetainContent(false);
+        processor.receivers.put("http://localhost:8080/nifi", receiver);
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("remote.url", "http://localhost:8080/nifi");
+        testRunner.enqueue(new byte[256 * 1024], attributes);
+
+        final long start = System.nanoTime();
+        testRunner.run();
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 1);
+        assertEquals(256 * 1024, receiver.getBytesReceived());
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 200);
+    }
+
+    @Test
+    public void testAutoCompressionOnSlowLink() {
+        final InMemoryReceiver receiver = new InMemoryReceiver();
+        receiver.setBytesPerSecond(1024 * 1024);
+        receiver.setRetainContent(false);
+        processor.receivers.put("http://localhost:8080/nifi", receiver);
+        testRunner.setProperty(PutSiteToSite.USE_COMPRESSION, "auto");
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("remote.url", "http://localhost:8080/nifi");
+        testRunner.enqueue(new byte[64 * 1024], attributes);
+        testRunner.enqueue(new byte[64 * 1024], attributes);
+        testRunner.run(2, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 2);
+        assertEquals(2, processor.clients.size());
+        assertFalse(processor.clients.get(0).getConfig().isUseCompression());
+        assertTrue(processor.clients.get(1).getConfig().isUseCompression());
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Uncompressed Transactions"));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Compressed Transactions"));
+
+        final CompressionAdvisor.Stats stats = processor.getCompressionStats(new Destination("http://localhost:8080/nifi", "input"));
+        assertEquals(1, stats.getCompressedTransfers());
+        assertTrue(stats.getRatio() < 0.1);
+        assertTrue(stats.getBytesSaved() > 0);
+        assertEquals(stats.getBytesSaved(), testRunner.getCounterValue("Compression Bytes Saved").longValue());
+    }
+
+    @Test
+    public void testAutoCompressionSkipsIncompressibleContent() {
+        final InMemoryReceiver receiver = new InMemoryReceiver();
+        receiver.setBytesPerSecond(1024 * 1024);
+        receiver.setRetainContent(false);
+        processor.receivers.put("http://localhost:8080/nifi", receiver);
+        testRunner.setProperty(PutSiteToSite.USE_COMPRESSION, "auto");
+
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("remote.url", "http://localhost:8080/nifi");
+        final Random random = new Random(1L);
+        for (int i = 0; i < 2; i++) {
+            final byte[] content = new byte[64 * 1024];
+            random.nextBytes(content);
+            testRunner.enqueue(content, attributes);
+        }
+        testRunner.run(2, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 2);
+        assertEquals(1, processor.clients.size());
+        assertFalse(processor.clients.get(0).getConfig().isUseCompression());
+        assertEquals(Long.valueOf(2), testRunner.getCounterValue("Uncompressed Transactions"));
+        assertNull(testRunner.getCounterValue("Compressed Transactions"));
+    }
+
+    @Test
+    public void testReceiverRequiringSslContextRejectsClientsWithout() throws Exception {
+        final InMemoryReceiver receiver = new InMemoryReceiver();
+        receiver.setRequireSslContext(true);
+        processor.receivers.put("https://localhost:8443/nifi", receiver);
+        try {
+            enqueue("a", "https://localhost:8443/nifi");
+            testRunner.run();
+            testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_FAILURE, 1);
+            testRunner.clearTransferState();
+
+            final StandardSSLContextService sslContextService = new StandardSSLContextService();
+            testRunner.addControllerService("ssl-context", sslContextService);
+            testRunner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE, "src/test/resources/" + InMemoryReceiver.KEYSTORE);
+            testRunner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE_PASSWORD, InMemoryReceiver.STORE_PASSWORD);
+            testRunner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE_TYPE, "JKS");
+            testRunner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE, "src/test/resources/" + InMemoryReceiver.TRUSTSTORE);
+            testRunner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE_PASSWORD, InMemoryReceiver.STORE_PASSWORD);
+            testRunner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE_TYPE, "JKS");
+            testRunner.enableControllerService(sslContextService);
+            testRunner.setProperty(PutSiteToSite.SSL_CONTEXT_SERVICE, "ssl-context");
+            testRunner.setProperty(PutSiteToSite.BATCH_COUNT, "1");
+
+            enqueue("b", "https://localhost:8443/nifi");
+            enqueue("c", "https://localhost:8443/nifi");
+            testRunner.run(2, true, true);
+
+            testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 2);
+            assertEquals(2, receiver.getReceived().size());
+            assertEquals(1, receiver.getHandshakeCount());
+        }
+        finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testSslContextIsCreatedOncePerStart() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final StandardSSLContextService sslContextService = new StandardSSLContextService() {
+            @Override
+            public SSLContext createSSLContext(final ClientAuth clientAuth) {
+                created.incrementAndGet();
+                return super.createSSLContext(clientAuth);
+            }
+        };
+        testRunner.addControllerService("ssl-context", sslContextService);
+        testRunner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE, "src/test/resources/" + InMemoryReceiver.KEYSTORE);
+        testRunner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE_PASSWORD, InMemoryReceiver.STORE_PASSWORD);
+        testRunner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE_TYPE, "JKS");
+        testRunner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE, "src/test/resources/" + InMemoryReceiver.TRUSTSTORE);
+        testRunner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE_PASSWORD, InMemoryReceiver.STORE_PASSWORD);
+        testRunner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE_TYPE, "JKS");
+        testRunner.enableControllerService(sslContextService);
+        testRunner.setProperty(PutSiteToSite.SSL_CONTEXT_SERVICE, "ssl-context");
+
+        enqueue("a", "https://localhost:8443/nifi");
+        enqueue("b", "https://localhost:9443/nifi");
+        enqueue("c", "https://localhost:10443/nifi");
+        testRunner.run(3, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 3);
+        assertEquals(3, processor.clients.size());
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testPackedFlowFilesRoundTrip() throws IOException {
+        final InMemoryReceiver receiver = new InMemoryReceiver();
+        processor.receivers.put("http://localhost:8080/nifi", receiver);
+        testRunner.setProperty(PutSiteToSite.BATCH_COUNT, "10");
+        testRunner.setProperty(PutSiteToSite.PACKING_FORMAT, PutSiteToSite.PACKING_FLOWFILE_V3.getValue());
+        testRunner.setProperty(PutSiteToSite.MAX_PACKET_COUNT, "4");
+
+        for (int i = 0; i < 10; i++) {
+            enqueue("content " + i, "http://localhost:8080/nifi");
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 10);
+        assertEquals(1, receiver.getTransactionCount());
+        assertEquals(3, receiver.getReceived().size());
+
+        final List<String> contents = new ArrayList<String>();
+        for (final InMemoryReceiver.Received packet : receiver.getReceived()) {
+            final FlowFileUnpackagerV3 unpackager = new FlowFileUnpackagerV3();
+            assertEquals("application/flowfile-v3", packet.getAttributes().get("mime.type"));
+            final InputStream in = new ByteArrayInputStream(packet.getContent());
+            int count = 0;
+            while (unpackager.hasMoreData()) {
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                final Map<String, String> attributes = unpackager.unpackageFlowFile(in, content);
+                if (attributes == null) {
+                    break;
+                }
+                assertEquals("http://localhost:8080/nifi", attributes.get("remote.url"));
+                contents.add(new String(content.toByteArray(), "UTF-8"));
+                count++;
+            }
+            assertEquals(String.valueOf(count), packet.getAttributes().get(PutSiteToSite.PACKED_COUNT));
+        }
+
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            expected.add("content " + i);
+        }
+        assertEquals(expected, contents);
+    }
+
+    @Test
+    public void testFlowFilesLargerThanPacketAreNotPacked() {
+        final InMemoryReceiver receiver = new InMemoryReceiver();
+        processor.receivers.put("http://localhost:8080/nifi", receiver);
+        testRunner.setProperty(PutSiteToSite.BATCH_COUNT, "3");
+        testRunner.setProperty(PutSiteToSite.PACKING_FORMAT, PutSiteToSite.PACKING_FLOWFILE_V3.getValue());
+        testRunner.setProperty(PutSiteToSite.MAX_PACKET_SIZE, "10 B");
+
+        enqueue("small", "http://localhost:8080/nifi");
+        enqueue("much too large to pack", "http://localhost:8080/nifi");
+        enqueue("small", "http://localhost:8080/nifi");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSiteToSite.REL_SUCCESS, 3);
+        final List<InMemoryReceiver.Received> received = receiver.getReceived();
+        assertEquals(3, received.size());
+        assertEquals("1", received.get(0).getAttributes().get(PutSiteToSite.PACKED_COUNT));
+        assertEquals("much too large to pack", new String(received.get(1).getContent()));
+        assertNull(received.get(1).getAttributes().get(PutSiteToSite.PACKED_COUNT));
+        assertEquals("1", received.get(2).getAttributes().get(PutSiteToSite.PACKED_COUNT));
+    }
+
+    @Test
+    public void testRealClientIsBuiltFromProperties() throws Exception {
+        final File stateDirectory = Files.createTempDirectory("peer-state").toFile();
+        stateDirectory.deleteOnExit();
+        final RecordingPutSiteToSite recording = new RecordingPutSiteToSite();
+        final TestRunner runner = TestRunners.newTestRunner(recording);
+        runner.setProperty(PutSiteToSite.REMOTE_URL, "https://localhost:1/nifi");
+        runner.setProperty(PutSiteToSite.REMOTE_INPUT_PORT, "input");
+        runner.setProperty(PutSiteToSite.TRANSPORT_PROTOCOL, "HTTP");
+        runner.setProperty(PutSiteToSite.USE_COMPRESSION, "true");
+        runner.setProperty(PutSiteToSite.COMMUNICATIONS_TIMEOUT, "1 sec");
+        runner.setProperty(PutSiteToSite.CONNECTION_IDLE_EXPIRATION, "45 secs");
+        runner.setProperty(PutSiteToSite.PEER_STATE_DIRECTORY, stateDirectory.getAbsolutePath());
+
+        final StandardSSLContextService sslContextService = new StandardSSLContextService();
+        runner.addControllerService("ssl-context", sslContextService);
+        runner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE, "src/test/resources/" + InMemoryReceiver.KEYSTORE);
+        runner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE_PASSWORD, InMemoryReceiver.STORE_PASSWORD);
+        runner.setProperty(sslContextService, StandardSSLContextService.KEYSTORE_TYPE, "JKS");
+        runner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE, "src/test/resources/" + InMemoryReceiver.TRUSTSTORE);
+        runner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE_PASSWORD, InMemoryReceiver.STORE_PASSWORD);
+        runner.setProperty(sslContextService, StandardSSLContextService.TRUSTSTORE_TYPE, "JKS");
+        runner.enableControllerService(sslContextService);
+        runner.setProperty(PutSiteToSite.SSL_CONTEXT_SERVICE, "ssl-context");
+
+        // Nothing listens on the port, so the transfer fails after the
+        // client has been built
+        runner.enqueue("a".getBytes());
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(PutSiteToSite.REL_FAILURE, 1);
+        assertEquals(1, recording.clients.size());
+        final SiteToSiteClientConfig config = recording.clients.get(0).getConfig();
+        assertEquals("https://localhost:1/nifi", config.getUrl());
+        assertEquals("input", config.getPortName());
+        assertEquals(SiteToSiteTransportProtocol.HTTP, config.getTransportProtocol());
+        assertTrue(config.isUseCompression());
+        assertNotNull(config.getSslContext());
+        assertEquals(1000, config.getTimeout(TimeUnit.MILLISECONDS));
+        assertEquals(45000, config.getIdleConnectionExpiration(TimeUnit.MILLISECONDS));
+        final SiteToSiteClientCache.Key key = new SiteToSiteClientCache.Key(new Destination("https://localhost:1/nifi", "input"),
+            true, "ssl-context", "REQUIRED", SiteToSiteTransportProtocol.HTTP);
+        assertEquals(new PeerStateDirectory(stateDirectory).getPeerFile(key), config.getPeerPersistenceFile());
+        for (final File file : stateDirectory.listFiles()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Builds real clients through PutSiteToSite's own factory and keeps them
+     * so that their configuration can be checked.
+     */
+    private static class RecordingPutSiteToSite extends PutSiteToSite {
+
+        private final List<SiteToSiteClient> clients = new CopyOnWriteArrayList<SiteToSiteClient>();
+
+        @Override
+        protected SiteToSiteClient createClient(final SiteToSiteClientConfig config) {
+            final SiteToSiteClient client = super.createClient(config);
+            clients.add(client);
+            return client;
+        }
+    }
+
+    private static class StandInPutSiteToSite extends PutSiteToSite {
+
+        private final List<InMemorySiteToSiteClient> clients = new CopyOnWriteArrayList<InMemorySiteToSiteClient>();
+
+        private final Set<String> failingUrls = Collections.synchronizedSet(new HashSet<String>());
+
+        private int failingTransaction;
+
+        private final Map<String, InMemoryReceiver> receivers = new HashMap<String, InMemoryReceiver>();
+
+        @Override
+        protected SiteToSiteClient createClient(final SiteToSiteClientConfig config) {
+            final InMemoryReceiver receiver = receivers.get(config.getUrl());
+            if (receiver != null) {
+                final InMemorySiteToSiteClient client = new InMemorySiteToSiteClient(config, receiver);
+                clients.add(client);
+                return client;
+            }
 
+            final InMemorySiteToSiteClient client = new InMemorySiteToSiteClient(config);
+            client.setFailOnConfirm(failingUrls.contains(config.getUrl()));
+            if (failingTransaction > 0) {
+                client.failTransaction(failingTransaction);
+            }
+            clients.add(client);
+            return client;
+        }
     }
 
 }